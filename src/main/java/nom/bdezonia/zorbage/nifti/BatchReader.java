@@ -0,0 +1,183 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import nom.bdezonia.zorbage.misc.DataBundle;
+
+/**
+ * Reads many nifti files at once. The number of reads in flight is bounded
+ * and so is the estimated memory those reads need while they decode and
+ * scale. Reads run on virtual threads when the JVM has them.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+class BatchReader {
+
+	private final NiftiReadOptions options;
+	
+	private final Semaphore slots;
+	
+	private final long budget;
+	
+	private long bytesInUse = 0;
+	
+	private BatchReader(NiftiReadOptions options) {
+		this.options = options;
+		this.slots = new Semaphore(options.getMaxConcurrentReads());
+		this.budget = options.getMemoryBudget();
+	}
+
+	/**
+	 * Read the files and return their bundles in the same order as the files.
+	 * A file that can not be read results in an empty bundle.
+	 * 
+	 * @param fileURIs
+	 * @param options
+	 * @return
+	 */
+	static List<DataBundle> read(Collection<URI> fileURIs, NiftiReadOptions options) {
+		List<DataBundle> bundles = new ArrayList<>();
+		for (CompletableFuture<DataBundle> future : readAsync(fileURIs, options)) {
+			bundles.add(future.handle((bundle, e) -> (e == null) ? bundle : new DataBundle()).join());
+		}
+		return bundles;
+	}
+
+	/**
+	 * Start reading the files and return a future of each one's bundle in the
+	 * same order as the files. The future of a file that can not be read
+	 * completes exceptionally with the reason.
+	 * 
+	 * @param fileURIs
+	 * @param options
+	 * @return
+	 */
+	static List<CompletableFuture<DataBundle>> readAsync(Collection<URI> fileURIs, NiftiReadOptions options) {
+		BatchReader reader = new BatchReader(options);
+		List<CompletableFuture<DataBundle>> futures = new ArrayList<>();
+		ExecutorService executor = newExecutor(options.getMaxConcurrentReads());
+		try {
+			for (URI uri : fileURIs) {
+				futures.add(CompletableFuture.supplyAsync(() -> reader.readOne(uri), executor));
+			}
+		}
+		finally {
+			// the reads that were started still run to the end
+			executor.shutdown();
+		}
+		return futures;
+	}
+	
+	// the header is read once a read slot is held so the number of files
+	// open at once is bounded too. the parsed header is then used to decode.
+	
+	private DataBundle readOne(URI uri) {
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException("batch read of "+uri+" was interrupted"));
+		}
+		try {
+			NiftiHeader header = Nifti.readHeader(uri, options);
+			long bytes = Math.min(estimatedBytes(header, options), budget);
+			reserve(bytes);
+			try {
+				return Nifti.bundle(Nifti.decode(uri, header, options, true));
+			}
+			finally {
+				release(bytes);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException("batch read of "+uri+" was interrupted"));
+		}
+		finally {
+			slots.release();
+		}
+	}
+	
+	private synchronized void reserve(long bytes) throws InterruptedException {
+		while (bytesInUse + bytes > budget) {
+			wait();
+		}
+		bytesInUse += bytes;
+	}
+	
+	private synchronized void release(long bytes) {
+		bytesInUse -= bytes;
+		notifyAll();
+	}
+	
+	// the memory a read of a file needs: the raw voxels or, when they are
+	// scaled as they are decoded, at most 16 bytes per voxel. file backed
+	// data needs next to none and lazily scaled data only its raw voxels.
+	// only the voxels of any region of the options are counted.
+	
+	static long estimatedBytes(NiftiHeader header, NiftiReadOptions options) {
+		if (options.getFileBacked())
+			return 0;
+		Region region = Region.of(options, header.dims());
+		long voxels = 1;
+		for (long dim : (region == null) ? header.dims() : region.dims()) {
+			voxels *= dim;
+		}
+		long bytes;
+		if (header.dataType() == 1)
+			bytes = (voxels + 7) / 8;
+		else
+			bytes = voxels * Nifti.bytesPerPixel(header.dataType());
+		if (header.sclSlope() != 0 && !options.getLazyScaling())
+			bytes = Math.max(bytes, voxels * 16);
+		return bytes;
+	}
+	
+	// a virtual thread per read where the JVM supports them (Java 21 and later)
+	// and a fixed pool of threads elsewhere
+	
+	private static ExecutorService newExecutor(int threads) {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.storage.StorageConstruction;
+
+/**
+ * A read only {@link IndexedDataSource} whose voxels stay in a memory mapping
+ * of the nifti file and are decoded each time they are accessed. Opening one
+ * costs no more than mapping the file so data much larger than the heap can be
+ * used. The file's axis flips are applied as voxels are fetched so the values
+ * are ordered just like data that was read into memory. The data can also be
+ * limited to a {@link Region} of the file.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class FileBackedDataSource<U> implements IndexedDataSource<U> {
+
+	// the largest region we will map at one time
+	
+	static final long WINDOW_SIZE = MappedVoxelSource.WINDOW_SIZE;
+	
+	private final ByteBuffer[] windows;
+	
+	private final long rowsPerWindow;
+	
+	private final int rowBytes;
+	
+	private final RowDecoder<U> decoder;
+	
+	private final long[] fileDims;
+	
+	private final long[] dims;
+	
+	private final FlipPlan plan;
+	
+	private final long size;
+	
+	/**
+	 * 
+	 * @param channel The open file that contains the voxels. It can be closed
+	 *                once this source has been constructed.
+	 * @param offset The byte offset in the file of the first voxel
+	 * @param data_type The nifti data type code of the voxels
+	 * @param dims The dimensions of all the data in the file
+	 * @param order The byte order of the voxel data
+	 * @param flips Which axes are stored reversed in the file
+	 * @param region The part of the data to present or null for all of it
+	 * @throws IOException
+	 */
+	FileBackedDataSource(FileChannel channel, long offset, short data_type, long[] dims, ByteOrder order,
+							boolean[] flips, Region region)
+		throws IOException
+	{
+		this.decoder = RowDecoders.forType(data_type);
+		this.fileDims = dims.clone();
+		this.dims = (region == null) ? dims.clone() : region.dims();
+		this.plan = new FlipPlan(dims, flips, region);
+		long count = 1;
+		for (int i = 0; i < this.dims.length; i++) {
+			count *= this.dims[i];
+		}
+		this.size = count;
+		long numRows = 1;
+		for (int i = 1; i < dims.length; i++) {
+			numRows *= dims[i];
+		}
+		this.rowBytes = Nifti.rowBytes(data_type, dims[0]);
+		this.rowsPerWindow = Math.max(1, WINDOW_SIZE / Math.max(1, rowBytes));
+		long numBytes = numRows * rowBytes;
+		if (offset < 0 || offset + numBytes > channel.size()) {
+			throw new IOException("voxel data extends beyond the end of the file");
+		}
+		int numWindows = (int) ((numRows + rowsPerWindow - 1) / rowsPerWindow);
+		this.windows = new ByteBuffer[numWindows];
+		for (int i = 0; i < numWindows; i++) {
+			long start = i * rowsPerWindow * rowBytes;
+			long length = Math.min(rowsPerWindow * rowBytes, numBytes - start);
+			windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, length);
+			windows[i].order(order);
+		}
+	}
+	
+	private FileBackedDataSource(FileBackedDataSource<U> other) {
+		this.windows = other.windows;
+		this.rowsPerWindow = other.rowsPerWindow;
+		this.rowBytes = other.rowBytes;
+		this.decoder = other.decoder;
+		this.fileDims = other.fileDims;
+		this.dims = other.dims;
+		this.plan = other.plan;
+		this.size = other.size;
+	}
+
+	@Override
+	public void set(long index, U value) {
+		throw new UnsupportedOperationException("nifti file backed data is read only");
+	}
+
+	@Override
+	public void get(long index, U value) {
+		if (index < 0 || index >= size)
+			throw new IllegalArgumentException("index out of bounds");
+		// find the file's x and row of the voxel one dimension at a time
+		long remainder = index;
+		long x = plan.index(0, remainder % dims[0]);
+		remainder /= dims[0];
+		long row = 0;
+		long stride = 1;
+		for (int d = 1; d < dims.length; d++) {
+			row += plan.index(d, remainder % dims[d]) * stride;
+			remainder /= dims[d];
+			stride *= fileDims[d];
+		}
+		ByteBuffer window = windows[(int) (row / rowsPerWindow)];
+		int rowStart = (int) ((row % rowsPerWindow) * rowBytes);
+		decoder.decodeVoxel(window, rowStart, x, value);
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * The voxels can not be changed so duplicates share the same mapping of the
+	 * file.
+	 */
+	@Override
+	public IndexedDataSource<U> duplicate() {
+		return new FileBackedDataSource<>(this);
+	}
+
+	@Override
+	public StorageConstruction storageType() {
+		return StorageConstruction.MEM_VIRTUAL;
+	}
+
+	@Override
+	public boolean accessWithOneThread() {
+		return false;
+	}
+}
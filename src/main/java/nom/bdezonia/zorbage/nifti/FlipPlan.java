@@ -0,0 +1,79 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+/**
+ * Where the voxels of a nifti file go in memory, worked out once per file.
+ * Along every dimension it lists the file index that each index of the data
+ * comes from with the file's axis flips (and the region, if there is one)
+ * applied. A reversed axis then costs a table lookup per row or plane rather
+ * than tests for every voxel.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+class FlipPlan {
+
+	private final long[][] fileIndex;
+	
+	private final boolean reverseX;
+	
+	/**
+	 * 
+	 * @param fileDims The dimensions of the data in the file
+	 * @param flips Which axes are stored reversed in the file
+	 * @param region The part of the data that is read or null for all of it
+	 */
+	FlipPlan(long[] fileDims, boolean[] flips, Region region) {
+		int numD = fileDims.length;
+		this.fileIndex = new long[numD][];
+		for (int d = 0; d < numD; d++) {
+			boolean flip = d < flips.length && flips[d];
+			long n = (region == null) ? fileDims[d] : region.dims()[d];
+			long[] table = new long[(int) n];
+			for (int i = 0; i < n; i++) {
+				long index = (region == null) ? i : region.index(d, i);
+				table[i] = flip ? fileDims[d] - 1 - index : index;
+			}
+			fileIndex[d] = table;
+		}
+		this.reverseX = flips.length > 0 && flips[0];
+	}
+
+	/**
+	 * Returns the file index along dimension d of index i of the data. When
+	 * there is no region this is also the index of the data that file index
+	 * i goes to.
+	 */
+	long index(int d, long i) {
+		return fileIndex[d][(int) i];
+	}
+
+	/**
+	 * Returns true if the voxels of each row are stored in reverse order.
+	 */
+	boolean reverseX() {
+		return reverseX;
+	}
+}
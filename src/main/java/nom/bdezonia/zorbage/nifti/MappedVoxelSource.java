@@ -0,0 +1,108 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link VoxelSource} that decodes rows of voxels straight out of a memory
+ * mapping of a file. Files larger than one mapping can hold are mapped in
+ * windows as the rows are consumed.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+class MappedVoxelSource implements VoxelSource {
+
+	// the largest region we will map at one time
+	
+	static final long WINDOW_SIZE = 1L << 30;
+	
+	private final FileChannel channel;
+	
+	private final ByteOrder order;
+	
+	private final long end;
+	
+	private long pos;
+	
+	private long windowStart;
+	
+	private MappedByteBuffer window;
+	
+	/**
+	 * 
+	 * @param channel The open file that contains the voxels. It is closed when
+	 *                this source is closed.
+	 * @param offset The byte offset in the file of the first voxel
+	 * @param numBytes The number of bytes of voxel data
+	 * @param order The byte order of the voxel data
+	 * @throws IOException
+	 */
+	MappedVoxelSource(FileChannel channel, long offset, long numBytes, ByteOrder order) throws IOException {
+		this.channel = channel;
+		if (offset < 0 || offset + numBytes > channel.size()) {
+			channel.close();
+			throw new IOException("voxel data extends beyond the end of the file");
+		}
+		this.order = order;
+		this.pos = offset;
+		this.end = offset + numBytes;
+		this.windowStart = offset;
+		this.window = null;
+	}
+	
+	@Override
+	public ByteBuffer nextRow(int numBytes) throws IOException {
+		if (pos + numBytes > end)
+			throw new IOException("attempt to read past the end of the voxel data");
+		if (window == null || pos + numBytes > windowStart + window.capacity()) {
+			long size = Math.min(Math.max(WINDOW_SIZE, numBytes), end - pos);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+			window.order(order);
+			windowStart = pos;
+		}
+		window.limit((int) (pos - windowStart + numBytes));
+		window.position((int) (pos - windowStart));
+		pos += numBytes;
+		return window;
+	}
+
+	@Override
+	public void skip(long numBytes) throws IOException {
+		if (pos + numBytes > end)
+			throw new IOException("attempt to skip past the end of the voxel data");
+		pos += numBytes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+}
@@ -40,24 +40,36 @@ import java.io.BufferedInputStream;
  */
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
-import nom.bdezonia.zorbage.algebra.Algebra;
 import nom.bdezonia.zorbage.algebra.Allocatable;
 import nom.bdezonia.zorbage.algebra.G;
-import nom.bdezonia.zorbage.algorithm.GridIterator;
-import nom.bdezonia.zorbage.algorithm.Transform2;
 import nom.bdezonia.zorbage.coordinates.Affine2dCoordinateSpace;
 import nom.bdezonia.zorbage.coordinates.Affine3dCoordinateSpace;
 import nom.bdezonia.zorbage.coordinates.CoordinateSpace;
@@ -65,15 +77,11 @@ import nom.bdezonia.zorbage.coordinates.LinearNdCoordinateSpace;
 import nom.bdezonia.zorbage.coordinates.StringDefinedAxisEquation;
 import nom.bdezonia.zorbage.data.DimensionedDataSource;
 import nom.bdezonia.zorbage.data.DimensionedStorage;
+import nom.bdezonia.zorbage.data.NdData;
 import nom.bdezonia.zorbage.datasource.IndexedDataSource;
-import nom.bdezonia.zorbage.dataview.PlaneView;
 import nom.bdezonia.zorbage.metadata.MetaDataStore;
 import nom.bdezonia.zorbage.misc.DataBundle;
 import nom.bdezonia.zorbage.misc.DataSourceUtils;
-import nom.bdezonia.zorbage.procedure.Procedure2;
-import nom.bdezonia.zorbage.sampling.IntegerIndex;
-import nom.bdezonia.zorbage.sampling.SamplingIterator;
-import nom.bdezonia.zorbage.tuple.Tuple2;
 import nom.bdezonia.zorbage.type.color.ArgbMember;
 import nom.bdezonia.zorbage.type.color.RgbMember;
 import nom.bdezonia.zorbage.type.complex.float128.ComplexFloat128Member;
@@ -102,23 +110,6 @@ import nom.bdezonia.zorbage.type.real.highprec.HighPrecisionMember;
 @SuppressWarnings({"rawtypes", "unused", "unchecked"})
 public class Nifti {
 	
-	private static Float32Member typeFlt;
-	private static Float64Member typeDbl;
-	private static Float128Member typeQuad;
-	private static UnsignedInt8Member typeUInt8;
-	private static UnsignedInt16Member typeUInt16;
-	private static UnsignedInt32Member typeUInt32;
-	private static UnsignedInt64Member typeUInt64;
-	private static SignedInt8Member typeInt8;
-	private static SignedInt16Member typeInt16;
-	private static SignedInt32Member typeInt32;
-	private static SignedInt64Member typeInt64;
-	private static RgbMember typeRgb;
-	private static ArgbMember typeArgb;
-	private static ComplexFloat32Member typeCFlt;
-	private static ComplexFloat64Member typeCDbl;
-	private static ComplexFloat128Member typeCQuad;
-	
 	/**
 	 * 
 	 * @param filename
@@ -129,12 +120,27 @@ public class Nifti {
 		DataBundle
 		
 			readAllDatasets(String filename)
+	{
+		return readAllDatasets(filename, new NiftiReadOptions());
+	}
+
+	/**
+	 * 
+	 * @param filename
+	 * @param options
+	 * @return
+	 */
+	public static
+	
+		DataBundle
+		
+			readAllDatasets(String filename, NiftiReadOptions options)
 	{
 		try {
 		
 			URI uri = new URI("file", null, new File(filename).getAbsolutePath(), null);
 			
-			return readAllDatasets(uri);
+			return readAllDatasets(uri, options);
 	
 		} catch (URISyntaxException e) {
 			
@@ -143,856 +149,999 @@ public class Nifti {
 	}
 
 	/**
+	 * Read the header of a nifti file without reading any of its voxels. Only
+	 * the header bytes and the extension table are read.
 	 * 
-	 * @param fileURI
+	 * @param filename
 	 * @return
+	 * @throws IOException
 	 */
-	public static DataBundle readAllDatasets(URI fileURI) {
-				
-		InputStream f1 = null;
-		
-		InputStream f2 = null;
+	public static NiftiHeader readHeader(String filename) throws IOException {
 		
-		BufferedInputStream bf1 = null;
+		return readHeader(new File(filename).toURI());
+	}
 
-		BufferedInputStream bf2 = null;
+	/**
+	 * Read the header of a nifti file without reading any of its voxels. Only
+	 * the header bytes and the extension table are read.
+	 * 
+	 * @param fileURI
+	 * @return
+	 * @throws IOException
+	 */
+	public static NiftiHeader readHeader(URI fileURI) throws IOException {
+		
+		return readHeader(fileURI, new NiftiReadOptions());
+	}
 
-		DataInputStream hdr = null;
+	/**
+	 * Read the header of a nifti file without reading any of its voxels. If
+	 * the options have a header cache that holds the file's header the file
+	 * is not read at all.
+	 * 
+	 * @param fileURI
+	 * @param options
+	 * @return
+	 * @throws IOException
+	 */
+	public static NiftiHeader readHeader(URI fileURI, NiftiReadOptions options) throws IOException {
 		
-		DataInputStream values = null;
+		NiftiHeaderCache cache = options.getHeaderCache();
 		
-		MetaDataStore metadata = new MetaDataStore();
-				
-		try {
-			
-			f1 = fileURI.toURL().openStream();
-			
-			bf1 = new BufferedInputStream(f1);
-			
-			hdr = new DataInputStream(bf1);
-			
-			boolean two_files;
-			
-			long numD;
-			
-			long[] dims;
-			
-			short data_type = 0;
-			
-			double scl_slope;
-			
-			double scl_inter;
-			
-			boolean swapBytes = false;
-			
-			byte[] buf128 = new byte[16];
-			
-			double[] spacings;
-			
-			String[] units;
-			
-			double toffset;
-			
-			String auxname;
-			
-			String description;
-			
-			String intent;
-			
-			double sx = 0;
-			double x1 = 0;
-			double x2 = 0;
-			double x3 = 0;
-			double y0 = 0;
-			double sy = 0;
-			double y2 = 0;
-			double y3 = 0;
-			double z0 = 0;
-			double z1 = 0;
-			double sz = 0;
-			double z3 = 0;
-			
-			boolean is_analyze = false;
+		NiftiHeaderCache.Key key = (cache == null) ? null : NiftiHeaderCache.key(fileURI);
+		
+		NiftiHeader header = (key == null) ? null : cache.get(key);
+		
+		if (header != null)
+			return header;
+		
+		BufferedInputStream bf =
+				NiftiFiles.open(fileURI.toURL(), NiftiFiles.HEADER_BUFFER_SIZE, NiftiFiles.HEADER_BUFFER_SIZE);
+		
+		try (DataInputStream hdr = new DataInputStream(bf)) {
 			
-			int headerSize = hdr.readInt();
+			header = NiftiHeader.read(hdr);
+		}
+		catch (IllegalArgumentException e) {
 			
-			if (headerSize == 348 || swapInt(headerSize) == 348) {
-				
-				// possibly nifti 1
-				
-				metadata.putString("NIFTI HEADER: nifti version", "1");
-
-				System.out.println("Possibly NIFTI 1");
+			throw new IOException(e.getMessage());
+		}
+		
+		if (key != null)
+			cache.put(key, header);
+		
+		return header;
+	}
 
-				for (int i = 0; i < 35; i++) {
-					readByte(hdr);
-				}
-				
-				byte dim_info = readByte(hdr);
+	/**
+	 * Open a stream over the 3d volumes of a nifti file. Only one volume is
+	 * held in memory at a time. Close the stream when done.
+	 * 
+	 * @param fileURI
+	 * @return
+	 * @throws IOException
+	 */
+	public static NiftiVolumeStream streamVolumes(URI fileURI) throws IOException {
+		
+		return streamVolumes(fileURI, new NiftiReadOptions());
+	}
 
-				metadata.putByte("NIFTI HEADER: dim info", dim_info);
+	/**
+	 * Open a stream over the 3d volumes of a nifti file. Only one volume is
+	 * held in memory at a time. Close the stream when done. The memory
+	 * mapping, scaled precision and header cache options apply to streams.
+	 * The others are ignored.
+	 * 
+	 * @param fileURI
+	 * @param options
+	 * @return
+	 * @throws IOException
+	 */
+	public static NiftiVolumeStream streamVolumes(URI fileURI, NiftiReadOptions options) throws IOException {
+		
+		return new NiftiVolumeStream(fileURI, options);
+	}
 
-				// image dimensions
-				
-				short sNumD = readShort(hdr, false);
-				if (sNumD < 0 || sNumD > 7) {
-					swapBytes = true;
-					// now swap everything we've already read that could have been affected by endianess
-					numD = swapShort(sNumD);
-				}
-				else {
-					numD = sNumD;
-				}
-				short d1 = readShort(hdr, swapBytes);
-				short d2 = readShort(hdr, swapBytes);
-				short d3 = readShort(hdr, swapBytes);
-				short d4 = readShort(hdr, swapBytes);
-				short d5 = readShort(hdr, swapBytes);
-				short d6 = readShort(hdr, swapBytes);
-				short d7 = readShort(hdr, swapBytes);
-				
-				dims = new long[(int) numD];
-				if (numD > 0) dims[0] = d1;
-				if (numD > 1) dims[1] = d2;
-				if (numD > 2) dims[2] = d3;
-				if (numD > 3) dims[3] = d4;
-				if (numD > 4) dims[4] = d5;
-				if (numD > 5) dims[5] = d6;
-				if (numD > 6) dims[6] = d7;
-				
-				metadata.putLong("NIFTI HEADER: dim 0", numD);
-				metadata.putLong("NIFTI HEADER: dim 1", (long) d1);
-				metadata.putLong("NIFTI HEADER: dim 2", (long) d2);
-				metadata.putLong("NIFTI HEADER: dim 3", (long) d3);
-				metadata.putLong("NIFTI HEADER: dim 4", (long) d4);
-				metadata.putLong("NIFTI HEADER: dim 5", (long) d5);
-				metadata.putLong("NIFTI HEADER: dim 6", (long) d6);
-				metadata.putLong("NIFTI HEADER: dim 7", (long) d7);
+	/**
+	 * Write data to a nifti file. A name ending in .nii makes a single file
+	 * and a name ending in .hdr or .img makes a header and image file pair.
+	 * 
+	 * @param data The data to write. It must have 2 to 7 dimensions.
+	 * @param type A value of the type of the data
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void write(DimensionedDataSource data, Allocatable type, Path path) throws IOException {
+		
+		write(data, type, path, new NiftiWriteOptions());
+	}
 
-				float nifti_intent_param1 = readFloat(hdr, swapBytes);
-				float nifti_intent_param2 = readFloat(hdr, swapBytes);
-				float nifti_intent_param3 = readFloat(hdr, swapBytes);
-								
-				short nifti_intent_code = readShort(hdr, swapBytes);
+	/**
+	 * Write data to a nifti file. A name ending in .nii makes a single file
+	 * and a name ending in .hdr or .img makes a header and image file pair.
+	 * 
+	 * @param data The data to write. It must have 2 to 7 dimensions.
+	 * @param type A value of the type of the data
+	 * @param path
+	 * @param options
+	 * @throws IOException
+	 */
+	public static void write(DimensionedDataSource data, Allocatable type, Path path, NiftiWriteOptions options)
+		throws IOException
+	{
+		NiftiWriter.write(data, type, path, options);
+	}
 
-				metadata.putShort("NIFTI HEADER: intent code", nifti_intent_code);
-				metadata.putFloat("NIFTI HEADER: intent param 1", nifti_intent_param1);
-				metadata.putFloat("NIFTI HEADER: intent param 2", nifti_intent_param2);
-				metadata.putFloat("NIFTI HEADER: intent param 3", nifti_intent_param3);
+	/**
+	 * Read many files at once. How many are read at the same time and how
+	 * much memory they can use is controlled by the default options.
+	 * 
+	 * @param fileURIs
+	 * @return The bundle of each file in the same order as the files. A file
+	 *          that can not be read results in an empty bundle. Use
+	 *          readAllAsync() to learn why a file could not be read.
+	 */
+	public static List<DataBundle> readAll(Collection<URI> fileURIs) {
+		
+		return readAll(fileURIs, new NiftiReadOptions());
+	}
 
-				data_type = readShort(hdr, swapBytes);
-				
-				short bitpix = readShort(hdr, swapBytes);
-				
-				metadata.putShort("NIFTI HEADER: data_type", data_type);
-				metadata.putShort("NIFTI HEADER: bitpix", bitpix);
+	/**
+	 * Read many files at once. How many are read at the same time and how
+	 * much memory they can use is controlled by the options. Reads run on
+	 * virtual threads when the JVM has them.
+	 * 
+	 * @param fileURIs
+	 * @param options
+	 * @return The bundle of each file in the same order as the files. A file
+	 *          that can not be read results in an empty bundle. Use
+	 *          readAllAsync() to learn why a file could not be read.
+	 */
+	public static List<DataBundle> readAll(Collection<URI> fileURIs, NiftiReadOptions options) {
+		
+		return BatchReader.read(fileURIs, options);
+	}
 
-				short slice_start = readShort(hdr, swapBytes);
+	/**
+	 * Start reading many files at once as readAll() does and return at once.
+	 * Unlike readAll() the future of a file that can not be read completes
+	 * exceptionally with the reason.
+	 * 
+	 * @param fileURIs
+	 * @param options
+	 * @return The future bundle of each file in the same order as the files.
+	 */
+	public static List<CompletableFuture<DataBundle>> readAllAsync(Collection<URI> fileURIs, NiftiReadOptions options) {
+		
+		return BatchReader.readAsync(fileURIs, options);
+	}
 
-				metadata.putShort("NIFTI HEADER: slice start", slice_start);
+	/**
+	 * Read the header of a nifti file on the given executor. The future
+	 * completes exceptionally if the header can not be read.
+	 * 
+	 * @param fileURI
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<NiftiHeader> readHeaderAsync(URI fileURI, Executor executor) {
+		
+		return readHeaderAsync(fileURI, new NiftiReadOptions(), executor);
+	}
 
-				// pixel spacings
+	/**
+	 * Read the header of a nifti file on the given executor. This is the first
+	 * stage of an asynchronous read. The future completes exceptionally if the
+	 * header can not be read.
+	 * 
+	 * @param fileURI
+	 * @param options
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<NiftiHeader> readHeaderAsync(URI fileURI, NiftiReadOptions options, Executor executor) {
+		
+		return CompletableFuture.supplyAsync(() -> {
+			
+			try {
 				
-				float sd0 = readFloat(hdr, swapBytes);
-				float sd1 = readFloat(hdr, swapBytes);
-				float sd2 = readFloat(hdr, swapBytes);
-				float sd3 = readFloat(hdr, swapBytes);
-				float sd4 = readFloat(hdr, swapBytes);
-				float sd5 = readFloat(hdr, swapBytes);
-				float sd6 = readFloat(hdr, swapBytes);
-				float sd7 = readFloat(hdr, swapBytes);
-
-				spacings = new double[(int) numD];
-				if (numD > 0) spacings[0] = sd1;
-				if (numD > 1) spacings[1] = sd2;
-				if (numD > 2) spacings[2] = sd3;
-				if (numD > 3) spacings[3] = sd4;
-				if (numD > 4) spacings[4] = sd5;
-				if (numD > 5) spacings[5] = sd6;
-				if (numD > 6) spacings[6] = sd7;
+				return readHeader(fileURI, options);
 				
-				metadata.putFloat("NIFTI HEADER: axis 0 spacing", sd0);
-				metadata.putFloat("NIFTI HEADER: axis 1 spacing", sd1);
-				metadata.putFloat("NIFTI HEADER: axis 2 spacing", sd2);
-				metadata.putFloat("NIFTI HEADER: axis 3 spacing", sd3);
-				metadata.putFloat("NIFTI HEADER: axis 4 spacing", sd4);
-				metadata.putFloat("NIFTI HEADER: axis 5 spacing", sd5);
-				metadata.putFloat("NIFTI HEADER: axis 6 spacing", sd6);
-				metadata.putFloat("NIFTI HEADER: axis 7 spacing", sd7);
-
-				float vox_offset = readFloat(hdr, swapBytes);
+			} catch (IOException e) {
 				
-				scl_slope = readFloat(hdr, swapBytes);
-				scl_inter = readFloat(hdr, swapBytes);
-
-				metadata.putDouble("NIFTI HEADER: scale slope", scl_slope);
-				metadata.putDouble("NIFTI HEADER: scale intercept", scl_inter);
-
-				short slice_end = readShort(hdr, swapBytes);
-
-				metadata.putShort("NIFTI HEADER: slice end", slice_end);
+				throw new UncheckedIOException(e);
+			}
+			
+		}, executor);
+	}
 
-				byte slice_code = readByte(hdr);
+	/**
+	 * Decode the voxels of a nifti file whose header has been read on the
+	 * given executor. This is the second stage of an asynchronous read. The
+	 * raw values are decoded: any scl_slope of the header is not applied (see
+	 * scaleAsync()). The future completes exceptionally if the voxels can not
+	 * be read.
+	 * 
+	 * @param fileURI
+	 * @param header The header of the file
+	 * @param options
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<NiftiDataset> decodeAsync(URI fileURI, NiftiHeader header,
+																NiftiReadOptions options, Executor executor)
+	{
+		return CompletableFuture.supplyAsync(() -> {
+			
+			try {
 				
-				metadata.putByte("NIFTI HEADER: slice code", slice_code);
+				return decode(fileURI, header, options, false);
 				
-				byte xyzt_units = readByte(hdr);
-
-				metadata.putByte("NIFTI HEADER: xyzt units", xyzt_units);
-
-				int v;
-				units = new String[(int)numD];
-				String space_units = "unk";
-				v = xyzt_units & 0x7;
-				if (v == 1) space_units = "meter";
-				if (v == 2) space_units = "mm";
-				if (v == 3) space_units = "micron";
-				String time_units = "unk";
-				v = xyzt_units & 0x38;
-				if (v == 6) time_units = "secs";
-				if (v == 16) time_units = "millisecs";
-				if (v == 24) time_units = "microsecs";
-				// do these apply to time axis or the other 3 upper indices?
-				if (v == 32) time_units = "hertz";
-				if (v == 40) time_units = "ppm";
-				if (v == 48) time_units = "rad/sec";
-				String other_units = "unk";
-
-				if (numD > 0) units[0] = space_units;
-				if (numD > 1) units[1] = space_units;
-				if (numD > 2) units[2] = space_units;
-				if (numD > 3) units[3] = time_units;
-				if (numD > 4) units[4] = other_units;
-				if (numD > 5) units[5] = other_units;
-				if (numD > 6) units[6] = other_units;
+			} catch (IOException e) {
+				
+				throw new UncheckedIOException(e);
+			}
+			
+		}, executor);
+	}
 
-				float cal_max = readFloat(hdr, swapBytes);
-				float cal_min = readFloat(hdr, swapBytes);
+	/**
+	 * Apply the scl_slope and scl_inter of a decoded data set's header to its
+	 * values on the given executor. This is the third stage of an asynchronous
+	 * read. Data that needs no scaling is handed back as is. The scaled values
+	 * are stored in new storage unless the options ask for lazy scaling or the
+	 * data is file backed. Raw values that were stored off the heap are
+	 * released once they are scaled into new storage so the decoded data set
+	 * can not be used afterwards.
+	 * 
+	 * @param dataset The decoded data set
+	 * @param options
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<NiftiDataset> scaleAsync(NiftiDataset dataset, NiftiReadOptions options,
+																Executor executor)
+	{
+		return CompletableFuture.supplyAsync(() -> {
+			
+			try {
 				
-				metadata.putFloat("NIFTI HEADER: calibration min", cal_max);
-				metadata.putFloat("NIFTI HEADER: calibration max", cal_min);
+				return scale(dataset, options);
 				
-				float slice_duration = readFloat(hdr, swapBytes);
-				toffset = readFloat(hdr, swapBytes);
-
-				metadata.putFloat("NIFTI HEADER: slice duration", slice_duration);
-				metadata.putDouble("NIFTI HEADER: time offset", toffset);
-
-				for (int i = 0; i < 2; i++) {
-					readInt(hdr, swapBytes);
-				}
-
-				description = readString(hdr, 80);
+			} catch (IOException e) {
 				
-				auxname = readString(hdr, 24);
-
-				metadata.putString("NIFTI HEADER: description", description);
-				metadata.putString("NIFTI HEADER: auxiliary file name", auxname);
-
-				short qform_code = readShort(hdr, swapBytes);
-				short sform_code = readShort(hdr, swapBytes);
-
-				float quatern_b = readFloat(hdr, swapBytes);
-				float quatern_c = readFloat(hdr, swapBytes);
-				float quatern_d = readFloat(hdr, swapBytes);
-				float qoffset_x = readFloat(hdr, swapBytes);
-				float qoffset_y = readFloat(hdr, swapBytes);
-				float qoffset_z = readFloat(hdr, swapBytes);
+				throw new UncheckedIOException(e);
+			}
+			
+		}, executor);
+	}
 
-				metadata.putShort("NIFTI HEADER: qform code", qform_code);
-				metadata.putShort("NIFTI HEADER: sform_code", sform_code);
-				metadata.putFloat("NIFTI HEADER: quaternion b parameter", quatern_b);
-				metadata.putFloat("NIFTI HEADER: quaternion c parameter", quatern_c);
-				metadata.putFloat("NIFTI HEADER: quaternion d parameter", quatern_d);
-				metadata.putFloat("NIFTI HEADER: quaternion z parameter", qoffset_x);
-				metadata.putFloat("NIFTI HEADER: quaternion y parameter", qoffset_y);
-				metadata.putFloat("NIFTI HEADER: quaternion z parameter", qoffset_z);
+	/**
+	 * Read all the data sets of a nifti file on the given executor rather than
+	 * on the calling thread. The returned future can be composed with further
+	 * stages of processing. Unlike readAllDatasets() the future completes
+	 * exceptionally if the file can not be read.
+	 * 
+	 * @param fileURI
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<DataBundle> readAllDatasetsAsync(URI fileURI, Executor executor) {
+		
+		return readAllDatasetsAsync(fileURI, new NiftiReadOptions(), executor);
+	}
 
-				// affine transform : row 0 = x, row 1 = y, row 2 = z
+	/**
+	 * Read all the data sets of a nifti file on the given executor rather than
+	 * on the calling thread. The header is read in one stage and the voxels
+	 * are decoded and scaled in the next so they are only passed over once.
+	 * To run decoding and scaling as separate stages compose readHeaderAsync(),
+	 * decodeAsync(), scaleAsync() and bundle(). Unlike readAllDatasets() the
+	 * future completes exceptionally if the file can not be read.
+	 * 
+	 * @param fileURI
+	 * @param options
+	 * @param executor
+	 * @return
+	 */
+	public static CompletableFuture<DataBundle> readAllDatasetsAsync(URI fileURI, NiftiReadOptions options, Executor executor) {
+		
+		return readHeaderAsync(fileURI, options, executor).thenApplyAsync(header -> {
+			
+			try {
 				
-				sx = readFloat(hdr, swapBytes);
-				x1 = readFloat(hdr, swapBytes);
-				x2 = readFloat(hdr, swapBytes);
-				x3 = readFloat(hdr, swapBytes);
-				y0 = readFloat(hdr, swapBytes);
-				sy = readFloat(hdr, swapBytes);
-				y2 = readFloat(hdr, swapBytes);
-				y3 = readFloat(hdr, swapBytes);
-				z0 = readFloat(hdr, swapBytes);
-				z1 = readFloat(hdr, swapBytes);
-				sz = readFloat(hdr, swapBytes);
-				z3 = readFloat(hdr, swapBytes);
-
-				metadata.putDouble("NIFTI HEADER: affine x0 parameter", sx);
-				metadata.putDouble("NIFTI HEADER: affine x1 parameter", x1);
-				metadata.putDouble("NIFTI HEADER: affine x2 parameter", x2);
-				metadata.putDouble("NIFTI HEADER: affine x3 parameter", x3);
-				metadata.putDouble("NIFTI HEADER: affine y0 parameter", y0);
-				metadata.putDouble("NIFTI HEADER: affine y1 parameter", sy);
-				metadata.putDouble("NIFTI HEADER: affine y2 parameter", y2);
-				metadata.putDouble("NIFTI HEADER: affine y3 parameter", y3);
-				metadata.putDouble("NIFTI HEADER: affine z0 parameter", z0);
-				metadata.putDouble("NIFTI HEADER: affine z1 parameter", z1);
-				metadata.putDouble("NIFTI HEADER: affine z2 parameter", sz);
-				metadata.putDouble("NIFTI HEADER: affine z3 parameter", z3);
-
-				intent = readString(hdr, 16);
-
-				metadata.putString("NIFTI HEADER: intent", intent);
-
-				byte magic0 = readByte(hdr);
-				byte magic1 = readByte(hdr);
-				byte magic2 = readByte(hdr);
-				byte magic3 = readByte(hdr);
-
-				if (magic0 == 'n' && magic1 == 'i' && magic2 == '1' && magic3 == 0) {
-					System.out.println("VALID and of type 1a");
-					two_files = true;
-				}
-				else if (magic0 == 'n' && magic1 == '+' && magic2 == '1' && magic3 == 0) {
-					two_files = false;
-					System.out.println("VALID and of type 1b");
-				}
-				else {
-					System.out.println("INVALID type 1 header : treat it as ANALYZE data");
-					// TODO: read header as an ANALYZE 7.5 file and then read pixels correctly
-					// For now expect the current header vars will work for us as is.
-					is_analyze = true;
-					two_files = true;
-					metadata.putString("NIFTI HEADER: nifti version", "pre NIFTI ANALYZE file");
-				}
-			}
-			else if (headerSize == 540 || swapInt(headerSize) == 540) {
+				return bundle(decode(fileURI, header, options, true));
 				
-				// possibly nifti 2
+			} catch (IOException e) {
 				
-				System.out.println("Possibly NIFTI 2");
+				throw new UncheckedIOException(e);
+			}
+			
+		}, executor);
+	}
 
-				metadata.putString("NIFTI HEADER: nifti version", "2");
+	/**
+	 * 
+	 * @param fileURI
+	 * @return
+	 */
+	public static DataBundle readAllDatasets(URI fileURI) {
+		
+		return readAllDatasets(fileURI, new NiftiReadOptions());
+	}
 
-				byte magic0 = readByte(hdr);
-				byte magic1 = readByte(hdr);
-				byte magic2 = readByte(hdr);
-				byte magic3 = readByte(hdr);
-				byte magic4 = readByte(hdr);
-				byte magic5 = readByte(hdr);
-				byte magic6 = readByte(hdr);
-				byte magic7 = readByte(hdr);
+	/**
+	 * 
+	 * @param fileURI
+	 * @param options
+	 * @return
+	 */
+	public static DataBundle readAllDatasets(URI fileURI, NiftiReadOptions options) {
+		
+		try {
+			
+			return readBundle(fileURI, options);
+			
+		} catch (Exception e) {
+			
+			System.out.println("In Nifti open " + e);
+			return new DataBundle();
+		}
+	}
+	
+	/**
+	 * Give back the memory of data that was read off the heap (see
+	 * {@link NiftiReadOptions#setOffHeapStorage}). The data can not be used
+	 * afterwards: accesses that start during or after the release throw
+	 * IllegalStateException. Accesses already under way are waited for
+	 * before the memory is unmapped. Data that is not off the heap is left alone. Data handed out by a
+	 * {@link NiftiDataCache} is shared and is never released: its memory is
+	 * given back once the cache and every user have dropped it.
+	 * 
+	 * @param data Data returned by a read
+	 * @return True if off heap memory was given back
+	 * @throws IllegalStateException If the data belongs to a cache
+	 */
+	public static boolean release(DimensionedDataSource data) {
+		
+		OffHeapDataSource storage = offHeapStorage(data);
+		
+		if (storage == null)
+			return false;
+		
+		if (storage.cached())
+			throw new IllegalStateException("data held by a NiftiDataCache is shared and can not be released");
+		
+		storage.release();
+		
+		return true;
+	}
+	
+	// the off heap storage behind data or null if it is not off the heap
+	
+	static OffHeapDataSource offHeapStorage(DimensionedDataSource data) {
+		
+		IndexedDataSource storage = data.rawData();
+		
+		if (storage instanceof ScaledDataSource)
+			storage = ((ScaledDataSource) storage).raw();
+		
+		return (storage instanceof OffHeapDataSource) ? (OffHeapDataSource) storage : null;
+	}
+	
+	// Read all the data sets of a nifti file. Unlike readAllDatasets() a file
+	// that can not be read throws rather than resulting in an empty bundle.
+	
+	static DataBundle readBundle(URI fileURI, NiftiReadOptions options) throws IOException {
+		
+		NiftiHeader header = readHeader(fileURI, options);
+		
+		return bundle(decode(fileURI, header, options, true));
+	}
+	
+	// Decode the voxels of a nifti file whose header has been read. When scale
+	// is true data that has a scl_slope is scaled as it is decoded straight
+	// into storage of the scaled type and the raw values are never stored.
+	// Or, when the options ask, the raw values are stored and scaled as they
+	// are accessed. When scale is false the raw values are returned.
+	
+	static NiftiDataset decode(URI fileURI, NiftiHeader header, NiftiReadOptions options, boolean scale)
+		throws IOException
+	{
+		URL imageURL = header.isTwoFiles() ? NiftiFiles.imageFile(fileURI.toURL()) : fileURI.toURL();
+		
+		if (!"file".equals(fileURI.getScheme()))
+			return decode(fileURI, header, options, scale, imageURL, null);
+		
+		// a local image file is opened once: the channel tells whether it is
+		// compressed and then supplies its voxels
+		
+		Path path;
+		
+		try {
+			path = Paths.get(imageURL.toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e.getMessage());
+		}
+		
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			
+			return decode(fileURI, header, options, scale, imageURL, channel);
+		}
+	}
+	
+	// Decode the voxels of the image file at imageURL. The channel is open on
+	// the image file if it is local and is null otherwise.
+	
+	private static NiftiDataset decode(URI fileURI, NiftiHeader header, NiftiReadOptions options, boolean scale,
+										URL imageURL, FileChannel channel)
+		throws IOException
+	{
+		if (header.version() == 1) {
+			
+			System.out.println("Possibly NIFTI 1");
+			
+			if (header.isAnalyze())
+				System.out.println("INVALID type 1 header : treat it as ANALYZE data");
+			else if (header.isTwoFiles())
+				System.out.println("VALID and of type 1a");
+			else
+				System.out.println("VALID and of type 1b");
+		}
+		else {
+			
+			System.out.println("Possibly NIFTI 2");
+			
+			if (header.isTwoFiles())
+				System.out.println("VALID and of type 2a");
+			else
+				System.out.println("VALID and of type 2b");
+		}
+		
+		for (NiftiExtension ext : header.extensions()) {
+			
+			System.out.println("Extension found (and skipped) with code "+ext.code());
+		}
 
-				if (magic0 == 'n' && magic1 == 'i' && magic2 == '2' && magic3 == 0) {
-					System.out.println("VALID and of type 2a");
-					two_files = true;
-				}
-				else if (magic0 == 'n' && magic1 == '+' && magic2 == '2' && magic3 == 0) {
-					System.out.println("VALID and of type 2b");
-					two_files = false;
-				}
-				else {
-					System.out.println("INVALID type 2 header");
-					
-					hdr.close();
-					
-					return new DataBundle();
-				}
+		long[] dims = header.dims();
+		
+		short data_type = header.dataType();
+		
+		double scl_slope = header.sclSlope();
+		
+		double scl_inter = header.sclInter();
+		
+		ByteOrder byteOrder = header.byteOrder();
+		
+		long voxelBytes = numBytes(data_type, dims);
+		
+		// orient the axis data correctly
+		
+		boolean[] flips = flips(header);
+		
+		// the part of the data the caller wants or null for all of it
+		
+		Region region = Region.of(options, dims);
 
-				data_type = readShort(hdr, false);
-				short bitpix = readShort(hdr, false);
+		// an uncompressed local file is read in place
+		
+		boolean local_file = channel != null && !NiftiFiles.isGzipped(channel);
+
+		DimensionedDataSource data;
+		
+		Allocatable type;
+		
+		System.out.println("dims = " + Arrays.toString(dims));
+
+		// NIFTI bit data is packed 8 voxels to a byte
+		if (data_type == 1) {
+			type = G.UINT1.construct();
+		}
+		else {
+			type = value(data_type);
+		}
+		
+		Scaling scaling = (scl_slope == 0) ? null : Scaling.of(type, scl_slope, scl_inter, options.getScaledPrecision());
+		
+		// data that needs no scaling counts as scaled
+		
+		boolean scaled = scaling == null || scale;
+		
+		if (!scale) {
+			
+			scaling = null;
+		}
+		
+		boolean lazy = options.getFileBacked() && local_file;
+		
+		if (lazy) {
+			
+			// the voxels stay in the file and are decoded when they are accessed
+			
+			IndexedDataSource storage =
+					new FileBackedDataSource(channel, header.dataOffset(), data_type, dims, byteOrder, flips, region);
+			
+			if (scaling != null) {
 				
-				// image dimensions
+				ScaledDataSource scaledStorage = new ScaledDataSource(storage, type, scl_slope, scl_inter,
+						options.getScaledPrecision());
 				
-				numD = readLong(hdr, false);
-				if (numD < 0 || numD > 7) {
-					swapBytes = true;
-					// now swap everything we've already read that could have been affected by endianess
-					data_type = swapShort(data_type);
-					bitpix = swapShort(bitpix);
-					numD = swapLong(numD);
-				}
-				long d1 = readLong(hdr, swapBytes);
-				long d2 = readLong(hdr, swapBytes);
-				long d3 = readLong(hdr, swapBytes);
-				long d4 = readLong(hdr, swapBytes);
-				long d5 = readLong(hdr, swapBytes);
-				long d6 = readLong(hdr, swapBytes);
-				long d7 = readLong(hdr, swapBytes);
+				type = scaledStorage.scaledType();
 				
-				metadata.putLong("NIFTI HEADER: dim 0", numD);
-				metadata.putLong("NIFTI HEADER: dim 1", d1);
-				metadata.putLong("NIFTI HEADER: dim 2", d2);
-				metadata.putLong("NIFTI HEADER: dim 3", d3);
-				metadata.putLong("NIFTI HEADER: dim 4", d4);
-				metadata.putLong("NIFTI HEADER: dim 5", d5);
-				metadata.putLong("NIFTI HEADER: dim 6", d6);
-				metadata.putLong("NIFTI HEADER: dim 7", d7);
-
-				dims = new long[(int)numD];
-				if (numD > 0) dims[0] = d1;
-				if (numD > 1) dims[1] = d2;
-				if (numD > 2) dims[2] = d3;
-				if (numD > 3) dims[3] = d4;
-				if (numD > 4) dims[4] = d5;
-				if (numD > 5) dims[5] = d6;
-				if (numD > 6) dims[6] = d7;
-
-				metadata.putShort("NIFTI HEADER: data_type", data_type);
-				metadata.putShort("NIFTI HEADER: bitpix", bitpix);
-
-				double nifti_intent_param1 = readDouble(hdr, swapBytes);
-				double nifti_intent_param2 = readDouble(hdr, swapBytes);
-				double nifti_intent_param3 = readDouble(hdr, swapBytes);
+				storage = scaledStorage;
+			}
+			
+			data = new NdData((region == null) ? dims : region.dims(), storage);
+		}
+		else {
+			
+			boolean scaleOnAccess = scaling != null && options.getLazyScaling();
+			
+			Allocatable rawType = type;
+			
+			if (scaling != null && !scaleOnAccess) {
 				
-				// pixel spacings
+				type = (Allocatable) scaling.scaledAlg.construct();
+			}
+			
+			data = allocate(type, (region == null) ? dims : region.dims(), options);
+			
+			DimensionedDataSource target = data;
+			
+			if (scaling != null && !scaleOnAccess) {
 				
-				double sd0 = readDouble(hdr, swapBytes);
-				double sd1 = readDouble(hdr, swapBytes);
-				double sd2 = readDouble(hdr, swapBytes);
-				double sd3 = readDouble(hdr, swapBytes);
-				double sd4 = readDouble(hdr, swapBytes);
-				double sd5 = readDouble(hdr, swapBytes);
-				double sd6 = readDouble(hdr, swapBytes);
-				double sd7 = readDouble(hdr, swapBytes);
-
-				spacings = new double[(int)numD];
-				if (numD > 0) spacings[0] = sd1;
-				if (numD > 1) spacings[1] = sd2;
-				if (numD > 2) spacings[2] = sd3;
-				if (numD > 3) spacings[3] = sd4;
-				if (numD > 4) spacings[4] = sd5;
-				if (numD > 5) spacings[5] = sd6;
-				if (numD > 6) spacings[6] = sd7;
+				target = new NdData(DataSourceUtils.dimensions(data),
+						new ScaleOnWriteDataSource(data.rawData(), rawType, scl_slope, scl_inter,
+								options.getScaledPrecision()));
+			}
+			
+			try {
 				
-				metadata.putDouble("NIFTI HEADER: axis 0 spacing", sd0);
-				metadata.putDouble("NIFTI HEADER: axis 1 spacing", sd1);
-				metadata.putDouble("NIFTI HEADER: axis 2 spacing", sd2);
-				metadata.putDouble("NIFTI HEADER: axis 3 spacing", sd3);
-				metadata.putDouble("NIFTI HEADER: axis 4 spacing", sd4);
-				metadata.putDouble("NIFTI HEADER: axis 5 spacing", sd5);
-				metadata.putDouble("NIFTI HEADER: axis 6 spacing", sd6);
-				metadata.putDouble("NIFTI HEADER: axis 7 spacing", sd7);
-
-				long vox_offset = readLong(hdr, swapBytes);
+				if (options.getParallelDecoding() && local_file && region == null) {
 				
-				scl_slope = readDouble(hdr, swapBytes);
-				scl_inter = readDouble(hdr, swapBytes);
+					// the offset of every plane is known so planes can be decoded at the same time
 				
-				metadata.putDouble("NIFTI HEADER: scale slope", scl_slope);
-				metadata.putDouble("NIFTI HEADER: scale intercept", scl_inter);
-
-				double cal_max = readDouble(hdr, swapBytes);
-				double cal_min = readDouble(hdr, swapBytes);
+					ParallelPlaneReader.read(channel, header.dataOffset(), data_type, byteOrder, target,
+												new FlipPlan(dims, flips, null), ForkJoinPool.commonPool());
+				}
+				else {
+					
+					// local uncompressed files can be decoded directly out of a memory mapping
+					
+					DataInputStream values = null;
+					
+					VoxelSource voxels;
+		
+					if (options.getMemoryMapping() && local_file) {
+						
+						voxels = new MappedVoxelSource(channel, header.dataOffset(), voxelBytes, byteOrder);
+					}
+					else {
+						
+						InputStream in = (channel != null) ? Channels.newInputStream(channel) : imageURL.openStream();
+						
+						values = NiftiFiles.openAt(in, header.dataOffset());
+						
+						voxels = new StreamVoxelSource(values, byteOrder);
+					}
+		
+					try {
+						
+						if (region != null) {
+							
+							// only read the bytes the region touches
+							
+							region.read(voxels, data_type, rawType, target, dims, flips);
+						}
+						else {
+							
+							decodeRows(voxels, data_type, target, new FlipPlan(dims, flips, null));
+						}
+						
+						if (values != null)
+							System.out.println("  bytes remaining in values file = " + values.available());
+					}
+					finally {
+						
+						voxels.close();
+					}
+				}
+			}
+			catch (IOException | RuntimeException e) {
 				
-				metadata.putDouble("NIFTI HEADER: calibration min", cal_max);
-				metadata.putDouble("NIFTI HEADER: calibration max", cal_min);
+				// give back any off heap memory at once
 				
-				double slice_duration = readDouble(hdr, swapBytes);
-				toffset = readDouble(hdr, swapBytes);
-
-				metadata.putDouble("NIFTI HEADER: slice duration", slice_duration);
-				metadata.putDouble("NIFTI HEADER: time offset", toffset);
-
-				long slice_start = readLong(hdr, swapBytes);
+				release(data);
 				
-				metadata.putLong("NIFTI HEADER: slice start", slice_start);
-
-				long slice_end = readLong(hdr, swapBytes);
-
-				metadata.putLong("NIFTI HEADER: slice end", slice_end);
-
-				description = readString(hdr, 80);
-
-				auxname = readString(hdr, 24);
-
-				metadata.putString("NIFTI HEADER: description", description);
-				metadata.putString("NIFTI HEADER: auxiliary file name", auxname);
-
-				int qform_code = readInt(hdr, swapBytes);
-				int sform_code = readInt(hdr, swapBytes);
-
-				double quatern_b = readDouble(hdr, swapBytes);
-				double quatern_c = readDouble(hdr, swapBytes);
-				double quatern_d = readDouble(hdr, swapBytes);
-				double qoffset_x = readDouble(hdr, swapBytes);
-				double qoffset_y = readDouble(hdr, swapBytes);
-				double qoffset_z = readDouble(hdr, swapBytes);
-
-				metadata.putInt("NIFTI HEADER: qform code", qform_code);
-				metadata.putInt("NIFTI HEADER: sform_code", sform_code);
-				metadata.putDouble("NIFTI HEADER: quaternion b parameter", quatern_b);
-				metadata.putDouble("NIFTI HEADER: quaternion c parameter", quatern_c);
-				metadata.putDouble("NIFTI HEADER: quaternion d parameter", quatern_d);
-				metadata.putDouble("NIFTI HEADER: quaternion z parameter", qoffset_x);
-				metadata.putDouble("NIFTI HEADER: quaternion y parameter", qoffset_y);
-				metadata.putDouble("NIFTI HEADER: quaternion z parameter", qoffset_z);
-
-				// affine transform : row 0 = x, row 1 = y, row 2 = z
+				throw e;
+			}
+			
+			if (scaleOnAccess) {
 				
-				sx = readDouble(hdr, swapBytes);
-				x1 = readDouble(hdr, swapBytes);
-				x2 = readDouble(hdr, swapBytes);
-				x3 = readDouble(hdr, swapBytes);
-				y0 = readDouble(hdr, swapBytes);
-				sy = readDouble(hdr, swapBytes);
-				y2 = readDouble(hdr, swapBytes);
-				y3 = readDouble(hdr, swapBytes);
-				z0 = readDouble(hdr, swapBytes);
-				z1 = readDouble(hdr, swapBytes);
-				sz = readDouble(hdr, swapBytes);
-				z3 = readDouble(hdr, swapBytes);
-
-				metadata.putDouble("NIFTI HEADER: affine x0 parameter", sx);
-				metadata.putDouble("NIFTI HEADER: affine x1 parameter", x1);
-				metadata.putDouble("NIFTI HEADER: affine x2 parameter", x2);
-				metadata.putDouble("NIFTI HEADER: affine x3 parameter", x3);
-				metadata.putDouble("NIFTI HEADER: affine y0 parameter", y0);
-				metadata.putDouble("NIFTI HEADER: affine y1 parameter", sy);
-				metadata.putDouble("NIFTI HEADER: affine y2 parameter", y2);
-				metadata.putDouble("NIFTI HEADER: affine y3 parameter", y3);
-				metadata.putDouble("NIFTI HEADER: affine z0 parameter", z0);
-				metadata.putDouble("NIFTI HEADER: affine z1 parameter", z1);
-				metadata.putDouble("NIFTI HEADER: affine z2 parameter", sz);
-				metadata.putDouble("NIFTI HEADER: affine z3 parameter", z3);
-
-				int slice_code = readInt(hdr, swapBytes);
-
-				metadata.putInt("NIFTI HEADER: slice code", slice_code);
+				ScaledDataSource scaledStorage = new ScaledDataSource(data.rawData(), rawType, scl_slope, scl_inter,
+						options.getScaledPrecision());
 				
-				int xyzt_units = readInt(hdr, swapBytes);
-
-				metadata.putInt("NIFTI HEADER: xyzt units", xyzt_units);
-
-				int v;
-				units = new String[(int)numD];
-				String space_units = "unk";
-				v = xyzt_units & 0x7;
-				if (v == 1) space_units = "meter";
-				if (v == 2) space_units = "mm";
-				if (v == 3) space_units = "micron";
-				String time_units = "unk";
-				v = xyzt_units & 0x38;
-				if (v == 6) time_units = "secs";
-				if (v == 16) time_units = "millisecs";
-				if (v == 24) time_units = "microsecs";
-				if (v == 32) time_units = "hertz";
-				if (v == 40) time_units = "ppm";
-				if (v == 48) time_units = "rad/sec";
-				String other_units = "unk";
-
-				if (numD > 0) units[0] = space_units;
-				if (numD > 1) units[1] = space_units;
-				if (numD > 2) units[2] = space_units;
-				if (numD > 3) units[3] = time_units;
-				if (numD > 4) units[4] = other_units;
-				if (numD > 5) units[5] = other_units;
-				if (numD > 6) units[6] = other_units;
-
-				int nifti_intent_code = readInt(hdr, swapBytes);
-
-				metadata.putInt("NIFTI HEADER: intent code", nifti_intent_code);
-				metadata.putDouble("NIFTI HEADER: intent param 1", nifti_intent_param1);
-				metadata.putDouble("NIFTI HEADER: intent param 2", nifti_intent_param2);
-				metadata.putDouble("NIFTI HEADER: intent param 3", nifti_intent_param3);
-
-				intent = readString(hdr, 16);
-
-				metadata.putString("NIFTI HEADER: intent", intent);
-
-				byte dim_info = readByte(hdr);
+				type = scaledStorage.scaledType();
 				
-				metadata.putByte("NIFTI HEADER: dim info", dim_info);
+				data = new NdData(DataSourceUtils.dimensions(data), scaledStorage);
+			}
+		}
+		
+		System.out.println("DONE READING");
+		
+		return new NiftiDataset(fileURI, header, data, type, region, scaled);
+	}
+	
+	// Apply the scl_slope and scl_inter of a data set's header to its raw
+	// values. The scaled values are computed in one pass into new storage or,
+	// when the options ask for it or the raw values stay in the file, as they
+	// are accessed.
+	
+	static NiftiDataset scale(NiftiDataset raw, NiftiReadOptions options) throws IOException {
+		
+		if (raw.isScaled())
+			return raw;
+		
+		NiftiHeader header = raw.header();
+		
+		DimensionedDataSource data = raw.data();
+		
+		IndexedDataSource storage = data.rawData();
+		
+		long[] dims = DataSourceUtils.dimensions(data);
+		
+		if (options.getLazyScaling() || storage instanceof FileBackedDataSource) {
+			
+			ScaledDataSource scaled = new ScaledDataSource(storage, raw.type(), header.sclSlope(), header.sclInter(),
+					options.getScaledPrecision());
+			
+			return new NiftiDataset(raw.fileURI(), header, new NdData(dims, scaled), scaled.scaledType(),
+										raw.region(), true);
+		}
+		
+		Scaling scaling = Scaling.of(raw.type(), header.sclSlope(), header.sclInter(), options.getScaledPrecision());
+		
+		Allocatable type = (Allocatable) scaling.scaledAlg.construct();
+		
+		DimensionedDataSource scaled = allocate(type, dims, options);
+		
+		IndexedDataSource target = new ScaleOnWriteDataSource(scaled.rawData(), raw.type(), header.sclSlope(),
+				header.sclInter(), options.getScaledPrecision());
+		
+		Object value = scaling.rawAlg.construct();
+		
+		long size = storage.size();
+		
+		try {
+			
+			for (long i = 0; i < size; i++) {
+				storage.get(i, value);
+				target.set(i, value);
+			}
+			
+		} catch (RuntimeException | Error e) {
+			
+			release(scaled);
+			
+			throw e;
+		}
+		finally {
+			
+			// the raw values are not needed any more. off heap ones are given
+			// back now rather than whenever the garbage collector runs.
+			
+			OffHeapDataSource rawOffHeap = offHeapStorage(data);
+			
+			if (rawOffHeap != null && !rawOffHeap.cached())
+				rawOffHeap.release();
+		}
+		
+		return new NiftiDataset(raw.fileURI(), header, scaled, type, raw.region(), true);
+	}
+	
+	/**
+	 * Name the axes of a data set, give it its coordinate space and the
+	 * header's metadata and put it in a bundle. This is the last stage of an
+	 * asynchronous read.
+	 * 
+	 * @param dataset
+	 * @return
+	 */
+	public static DataBundle bundle(NiftiDataset dataset) {
+		
+		NiftiHeader header = dataset.header();
+		
+		DimensionedDataSource data = dataset.data();
+		
+		Region region = dataset.region();
+		
+		MetaDataStore metadata = new MetaDataStore();
+		
+		headerMetadata(header, metadata);
+		
+		long numD = header.numDimensions();
+		
+		String[] units = header.units();
+		
+		String auxname = header.auxFile();
+		
+		String description = header.description();
+		
+		String intent = header.intentName();
+		
+		data.setName("nifti file");
+		
+		data.setSource(dataset.fileURI().toString());
+		
+		if (numD > 0) {
+			data.setAxisType(0, "x");
+			data.setAxisUnit(0, units[0]);
+		}
+		if (numD > 1) {
+			data.setAxisType(1, "y");
+			data.setAxisUnit(1, units[1]);
+		}
+		if (numD > 2) {
+			data.setAxisType(2, "z");
+			data.setAxisUnit(2, units[2]);
+		}
+		if (numD > 3) {
+			data.setAxisType(3, "t");
+			data.setAxisUnit(3, units[3]);
+		}
+		if (numD > 4) {
+			data.setAxisType(4, "l");
+			data.setAxisUnit(4, units[4]);
+		}
+		if (numD > 5) {
+			data.setAxisType(5, "m");
+			data.setAxisUnit(5, units[5]);
+		}
+		if (numD > 6) {
+			data.setAxisType(6, "n");
+			data.setAxisUnit(6, units[6]);
+		}
 
-				for (int i = 0; i < 15; i++) {
-					// unused stuff
-					readByte(hdr);
-				}
-			}
-			else {
-				
-				System.out.println("unknown header size  "+headerSize);
-				
-				hdr.close();
-				
-				return new DataBundle();
-			}
+		data.setCoordinateSpace(coordinateSpace(header, (int) numD, region));
+		
+		data.metadata().merge(metadata);
+		
+		data.metadata().putString("auxiliary file name", auxname);
+		
+		data.metadata().putString("description", description);
+		
+		data.metadata().putString("intent", intent);
+		
+		DataBundle bundle = new DataBundle();
+		
+		mergeData(bundle, dataset.type(), data);
+		
+		return bundle;
+	}
+	
+	// The coordinate space of the first numD axes of a file's data or of the
+	// part of them a region covers. Streamed 3d volumes use it too so their
+	// voxels have the world coordinates a whole read of 3d data gives them.
+	
+	static CoordinateSpace coordinateSpace(NiftiHeader header, int numD, Region region) {
+		
+		double[] spacings = header.spacings();
+		
+		double[] srowX = header.srowX();
+		double[] srowY = header.srowY();
+		double[] srowZ = header.srowZ();
+		
+		// affine transform : row 0 = x, row 1 = y, row 2 = z
+		
+		double sx = srowX[0];
+		double x1 = srowX[1];
+		double x2 = srowX[2];
+		double x3 = srowX[3];
+		double y0 = srowY[0];
+		double sy = srowY[1];
+		double y2 = srowY[2];
+		double y3 = srowY[3];
+		double z0 = srowZ[0];
+		double z1 = srowZ[1];
+		double sz = srowZ[2];
+		double z3 = srowZ[3];
+		
+		BigDecimal[] scales = new BigDecimal[numD];
+		BigDecimal[] offsets = new BigDecimal[numD];
+		
+		for (int i = 0; i < numD && i < 7; i++) {
+			scales[i] = BigDecimal.valueOf(spacings[i]);
+		}
+		if (numD > 3) {
+			offsets[3] = BigDecimal.valueOf(header.toffset());
+		}
 
-			byte ext0, ext1, ext2, ext3;
-			do {
-				// I'm assuming after every extension there is another extension sentinel. docs are not clear. hopefully this works.
-				ext0 = readByte(hdr);
-				ext1 = readByte(hdr);
-				ext2 = readByte(hdr);
-				ext3 = readByte(hdr);
-				
-				if (ext0 != 0) {
-					// an extension is present. for now just skip past it.
-					int esize = readInt(hdr, swapBytes);
-					int ecode = readInt(hdr, swapBytes);
-					for (int i = 0; i < esize - 8; i++) {
-						readByte(hdr);
-					}
-					System.out.println("Extension found (and skipped) with code "+ecode);
+		// a region that starts part way along an axis moves the origin
+		
+		if (region != null) {
+			for (int i = 0; i < numD; i++) {
+				if (scales[i] != null && region.dims()[i] > 0 && region.isRange(i)) {
+					BigDecimal start = scales[i].multiply(BigDecimal.valueOf(region.index(i, 0)));
+					offsets[i] = (offsets[i] == null) ? start : offsets[i].add(start);
 				}
-			} while (ext0 != 0);
-
-			if (two_files) {
-				
-				String file1URLname = fileURI.toURL().toString();
-				
-				String filename2 = file1URLname.substring(0, file1URLname.length()-4)+ ".img";
-				
-				URL file2URLname = new URL(filename2);
-
-				f2 = file2URLname.openStream();
-				
-				bf2 = new BufferedInputStream(f2);
-				
-				values = new DataInputStream(bf2);
-			}
-			else {
-				
-				f2 = f1;
-				
-				bf2 = bf1;
-				
-				values = hdr;
 			}
+		}
 
-			DimensionedDataSource data;
-			
-			Allocatable type;
+		CoordinateSpace cspace;
+		if ((numD == 2) &&
+				(
+					(sx != 1 || x1 != 0 || x3 != 0) ||
+					(y0 != 0 || sy != 1 || y3 != 0)
+				)
+			)
+		{
+			cspace = new Affine2dCoordinateSpace(
+					BigDecimal.valueOf(sx), BigDecimal.valueOf(x1), BigDecimal.valueOf(x3),
+					BigDecimal.valueOf(y0), BigDecimal.valueOf(sy), BigDecimal.valueOf(y3));
+		}
+		if ((numD == 3) &&
+				(
+					(sx != 1 || x1 != 0 || x2 != 0 || x3 != 0) ||
+					(y0 != 0 || sy != 1 || y2 != 0 || y3 != 0) ||
+					(z0 != 0 || z1 != 0 || sz != 1 || z3 != 0)
+				)
+			)
+		{
+			cspace = new Affine3dCoordinateSpace(
+					BigDecimal.valueOf(sx), BigDecimal.valueOf(x1), BigDecimal.valueOf(x2), BigDecimal.valueOf(x3),
+					BigDecimal.valueOf(y0), BigDecimal.valueOf(sy), BigDecimal.valueOf(y2), BigDecimal.valueOf(y3),
+					BigDecimal.valueOf(z0), BigDecimal.valueOf(z1), BigDecimal.valueOf(sz), BigDecimal.valueOf(z3));
+		}
+		else {
+			cspace = new LinearNdCoordinateSpace(scales, offsets);
+		}
+		return cspace;
+	}
+	
+	// Make the storage that decoded data is put in. It is off the heap when the
+	// options ask for it and the type has a nifti encoding.
+	
+	private static DimensionedDataSource allocate(Allocatable type, long[] dims, NiftiReadOptions options)
+		throws IOException
+	{
+		if (options.getOffHeapStorage() && OffHeapDataSource.supports(type)) {
 			
-			Tuple2<Allocatable,DimensionedDataSource> result;
-
-			System.out.println("dims = " + Arrays.toString(dims));
-
-			// NIFTI bit data requires a little different approach
-			if (data_type == 1) {
-				UnsignedInt1Member pix = G.UINT1.construct();
-				type = pix;
-				data = DimensionedStorage.allocate(pix, dims);
-				PlaneView planes = new PlaneView<>(data, 0, 1);
-				long[] planeDims = new long[data.numDimensions()-2];
-				for (int i = 0; i < planeDims.length; i++) {
-					planeDims[i] = data.dimension(i+2);
-				}
-				IntegerIndex idx = new IntegerIndex(planeDims);
-				SamplingIterator<IntegerIndex> itr = GridIterator.compute(planeDims);
-				byte bucket = 0;
-				while (itr.hasNext()) {
-					itr.next(idx);
-					for (int i = 0; i < planeDims.length; i++) {
-						planes.setPositionValue(i, idx.get(i));
-					}
-					for (long y = 0; y < planes.d1(); y++) {
-						for (long x = 0; x < planes.d0(); x++) {
-							int bitNum = (int) (x % 8); 
-							if (bitNum == 0) {
-								bucket = readByte(values);
-							}
-							int val = (bucket & (1 << bitNum)) > 0 ? 1 : 0;
-							pix.setV(val);
-							// orient the axis data correctly
-							long transformedX = x;
-							if ((!is_analyze && sx < 0) || (is_analyze && sx > 0)) {
-								transformedX = planes.d0() - 1 - x;
-							}
-							long transformedY = y;
-							if (sy > 0) {
-								transformedY = planes.d1() - 1 - y;
-							}
-							long savedZ = -400;
-							if (data.numDimensions() > 2 && sz < 0) {
-								savedZ = planes.getPositionValue(0);
-								long transformedZ = data.dimension(2) - 1 - savedZ;
-								planes.setPositionValue(0, transformedZ);
-							}
-							planes.set(transformedX, transformedY, pix);
-							if (savedZ != -400) {
-								planes.setPositionValue(0, savedZ);
-							}
-						}
-					}
-				}
-				if (scl_slope != 0) {
-					result = scale(data, pix, scl_slope, scl_inter);
-					type = result.a();
-					data = result.b();
-				}
-			}
-			else {
-
-				// all other types are straightforward
-				type = value(data_type);
-
-				typeCast(type, data_type);
-				
-				data = DimensionedStorage.allocate(type, dims);
-				PlaneView planes = new PlaneView<>(data, 0, 1);
-				long[] planeDims = new long[data.numDimensions()-2];
-				for (int i = 0; i < planeDims.length; i++) {
-					planeDims[i] = data.dimension(i+2);
-				}
-				IntegerIndex idx = new IntegerIndex(planeDims);
-				SamplingIterator<IntegerIndex> itr = GridIterator.compute(planeDims);
-				while (itr.hasNext()) {
-					itr.next(idx);
-					for (int i = 0; i < planeDims.length; i++) {
-						planes.setPositionValue(i, idx.get(i));
-					}
-					for (long y = 0; y < planes.d1(); y++) {
-						for (long x = 0; x < planes.d0(); x++) {
-							readValue(values, data_type, swapBytes, buf128, type);
-							// orient the axis data correctly
-							long transformedX = x;
-							if ((!is_analyze && sx < 0) || (is_analyze && sx > 0)) {
-								transformedX = planes.d0() - 1 - x;
-							}
-							long transformedY = y;
-							if (sy > 0) {
-								transformedY = planes.d1() - 1 - y;
-							}
-							long savedZ = -400;
-							if (data.numDimensions() > 2 && sz < 0) {
-								savedZ = planes.getPositionValue(0);
-								long transformedZ = data.dimension(2) - 1 - savedZ;
-								planes.setPositionValue(0, transformedZ);
-							}
-							planes.set(transformedX, transformedY, type);
-							if (savedZ != -400) {
-								planes.setPositionValue(0, savedZ);
-							}
-						}
-					}
-				}
-				if (scl_slope != 0) {
-					result = scale(data, type, scl_slope, scl_inter);
-					type = result.a();
-					data = result.b();
-				}
+			long size = 1;
+			for (long dim : dims) {
+				size *= dim;
 			}
-
-			System.out.println("DONE READING");
-			System.out.println("  bytes remaining in header file = " + f1.available());
-			System.out.println("  bytes remaining in values file = " + f2.available());
-			
-			data.setName("nifti file");
 			
-			data.setSource(fileURI.toString());
+			return new NdData(dims, new OffHeapDataSource(type, size, options.getOffHeapDirectory()));
+		}
+		
+		return DimensionedStorage.allocate(type, dims);
+	}
+	
+	// Record all the header fields in the metadata. nifti 1 fields are stored
+	// with their original (narrower) types.
+	
+	static void headerMetadata(NiftiHeader h, MetaDataStore metadata) {
+		
+		long[] dim = h.dim();
+		double[] pixdim = h.pixdim();
+		double[] intentParams = h.intentParams();
+		double[] srowX = h.srowX();
+		double[] srowY = h.srowY();
+		double[] srowZ = h.srowZ();
+		
+		if (h.version() == 1) {
 			
-			BigDecimal[] scales = new BigDecimal[(int)numD];
-			BigDecimal[] offsets = new BigDecimal[(int)numD];
-
-			if (numD > 0) {
-				data.setAxisType(0, "x");
-				data.setAxisUnit(0, units[0]);
-				scales[0] = BigDecimal.valueOf(spacings[0]);
-			}
-			if (numD > 1) {
-				data.setAxisType(1, "y");
-				data.setAxisUnit(1, units[1]);
-				scales[1] = BigDecimal.valueOf(spacings[1]);
-			}
-			if (numD > 2) {
-				data.setAxisType(2, "z");
-				data.setAxisUnit(2, units[2]);
-				scales[2] = BigDecimal.valueOf(spacings[2]);
+			metadata.putString("NIFTI HEADER: nifti version", "1");
+			metadata.putByte("NIFTI HEADER: dim info", h.dimInfo());
+			metadata.putLong("NIFTI HEADER: dim 0", h.numDimensions());
+			for (int i = 1; i < 8; i++) {
+				metadata.putLong("NIFTI HEADER: dim " + i, dim[i]);
 			}
-			if (numD > 3) {
-				data.setAxisType(3, "t");
-				data.setAxisUnit(3, units[3]);
-				scales[3] = BigDecimal.valueOf(spacings[3]);
-				offsets[3] = BigDecimal.valueOf(toffset);
-			}
-			if (numD > 4) {
-				data.setAxisType(4, "l");
-				data.setAxisUnit(4, units[4]);
-				scales[4] = BigDecimal.valueOf(spacings[4]);
-			}
-			if (numD > 5) {
-				data.setAxisType(5, "m");
-				data.setAxisUnit(5, units[5]);
-				scales[5] = BigDecimal.valueOf(spacings[5]);
-			}
-			if (numD > 6) {
-				data.setAxisType(6, "n");
-				data.setAxisUnit(6, units[6]);
-				scales[6] = BigDecimal.valueOf(spacings[6]);
+			metadata.putShort("NIFTI HEADER: intent code", (short) h.intentCode());
+			metadata.putFloat("NIFTI HEADER: intent param 1", (float) intentParams[0]);
+			metadata.putFloat("NIFTI HEADER: intent param 2", (float) intentParams[1]);
+			metadata.putFloat("NIFTI HEADER: intent param 3", (float) intentParams[2]);
+			metadata.putShort("NIFTI HEADER: data_type", h.dataType());
+			metadata.putShort("NIFTI HEADER: bitpix", h.bitpix());
+			metadata.putShort("NIFTI HEADER: slice start", (short) h.sliceStart());
+			for (int i = 0; i < 8; i++) {
+				metadata.putFloat("NIFTI HEADER: axis " + i + " spacing", (float) pixdim[i]);
 			}
+			metadata.putDouble("NIFTI HEADER: scale slope", h.sclSlope());
+			metadata.putDouble("NIFTI HEADER: scale intercept", h.sclInter());
+			metadata.putShort("NIFTI HEADER: slice end", (short) h.sliceEnd());
+			metadata.putByte("NIFTI HEADER: slice code", (byte) h.sliceCode());
+			metadata.putByte("NIFTI HEADER: xyzt units", (byte) h.xyztUnits());
+			metadata.putFloat("NIFTI HEADER: calibration min", (float) h.calMax());
+			metadata.putFloat("NIFTI HEADER: calibration max", (float) h.calMin());
+			metadata.putFloat("NIFTI HEADER: slice duration", (float) h.sliceDuration());
+			metadata.putDouble("NIFTI HEADER: time offset", h.toffset());
+			metadata.putString("NIFTI HEADER: description", h.description());
+			metadata.putString("NIFTI HEADER: auxiliary file name", h.auxFile());
+			metadata.putShort("NIFTI HEADER: qform code", (short) h.qformCode());
+			metadata.putShort("NIFTI HEADER: sform_code", (short) h.sformCode());
+			metadata.putFloat("NIFTI HEADER: quaternion b parameter", (float) h.quaternB());
+			metadata.putFloat("NIFTI HEADER: quaternion c parameter", (float) h.quaternC());
+			metadata.putFloat("NIFTI HEADER: quaternion d parameter", (float) h.quaternD());
+			metadata.putFloat("NIFTI HEADER: quaternion z parameter", (float) h.qoffsetX());
+			metadata.putFloat("NIFTI HEADER: quaternion y parameter", (float) h.qoffsetY());
+			metadata.putFloat("NIFTI HEADER: quaternion z parameter", (float) h.qoffsetZ());
+		}
+		else {
 
-			CoordinateSpace cspace;
-			if ((numD == 2) &&
-					(
-						(sx != 1 || x1 != 0 || x3 != 0) ||
-						(y0 != 0 || sy != 1 || y3 != 0)
-					)
-				)
-			{
-				cspace = new Affine2dCoordinateSpace(
-						BigDecimal.valueOf(sx), BigDecimal.valueOf(x1), BigDecimal.valueOf(x3),
-						BigDecimal.valueOf(y0), BigDecimal.valueOf(sy), BigDecimal.valueOf(y3));
-			}
-			if ((numD == 3) &&
-					(
-						(sx != 1 || x1 != 0 || x2 != 0 || x3 != 0) ||
-						(y0 != 0 || sy != 1 || y2 != 0 || y3 != 0) ||
-						(z0 != 0 || z1 != 0 || sz != 1 || z3 != 0)
-					)
-				)
-			{
-				cspace = new Affine3dCoordinateSpace(
-						BigDecimal.valueOf(sx), BigDecimal.valueOf(x1), BigDecimal.valueOf(x2), BigDecimal.valueOf(x3),
-						BigDecimal.valueOf(y0), BigDecimal.valueOf(sy), BigDecimal.valueOf(y2), BigDecimal.valueOf(y3),
-						BigDecimal.valueOf(z0), BigDecimal.valueOf(z1), BigDecimal.valueOf(sz), BigDecimal.valueOf(z3));
+			metadata.putString("NIFTI HEADER: nifti version", "2");
+			metadata.putLong("NIFTI HEADER: dim 0", h.numDimensions());
+			for (int i = 1; i < 8; i++) {
+				metadata.putLong("NIFTI HEADER: dim " + i, dim[i]);
 			}
-			else {
-				cspace = new LinearNdCoordinateSpace(scales, offsets);
+			metadata.putShort("NIFTI HEADER: data_type", h.dataType());
+			metadata.putShort("NIFTI HEADER: bitpix", h.bitpix());
+			for (int i = 0; i < 8; i++) {
+				metadata.putDouble("NIFTI HEADER: axis " + i + " spacing", pixdim[i]);
 			}
-			data.setCoordinateSpace(cspace);
-			
-			data.metadata().merge(metadata);
-			
-			data.metadata().putString("auxiliary file name", auxname);
-			
-			data.metadata().putString("description", description);
-			
-			data.metadata().putString("intent", intent);
-			
-			DataBundle bundle = new DataBundle();
-			
-			mergeData(bundle, type, data);
+			metadata.putDouble("NIFTI HEADER: scale slope", h.sclSlope());
+			metadata.putDouble("NIFTI HEADER: scale intercept", h.sclInter());
+			metadata.putDouble("NIFTI HEADER: calibration min", h.calMax());
+			metadata.putDouble("NIFTI HEADER: calibration max", h.calMin());
+			metadata.putDouble("NIFTI HEADER: slice duration", h.sliceDuration());
+			metadata.putDouble("NIFTI HEADER: time offset", h.toffset());
+			metadata.putLong("NIFTI HEADER: slice start", h.sliceStart());
+			metadata.putLong("NIFTI HEADER: slice end", h.sliceEnd());
+			metadata.putString("NIFTI HEADER: description", h.description());
+			metadata.putString("NIFTI HEADER: auxiliary file name", h.auxFile());
+			metadata.putInt("NIFTI HEADER: qform code", h.qformCode());
+			metadata.putInt("NIFTI HEADER: sform_code", h.sformCode());
+			metadata.putDouble("NIFTI HEADER: quaternion b parameter", h.quaternB());
+			metadata.putDouble("NIFTI HEADER: quaternion c parameter", h.quaternC());
+			metadata.putDouble("NIFTI HEADER: quaternion d parameter", h.quaternD());
+			metadata.putDouble("NIFTI HEADER: quaternion z parameter", h.qoffsetX());
+			metadata.putDouble("NIFTI HEADER: quaternion y parameter", h.qoffsetY());
+			metadata.putDouble("NIFTI HEADER: quaternion z parameter", h.qoffsetZ());
+			metadata.putInt("NIFTI HEADER: slice code", h.sliceCode());
+			metadata.putInt("NIFTI HEADER: xyzt units", h.xyztUnits());
+			metadata.putInt("NIFTI HEADER: intent code", h.intentCode());
+			metadata.putDouble("NIFTI HEADER: intent param 1", intentParams[0]);
+			metadata.putDouble("NIFTI HEADER: intent param 2", intentParams[1]);
+			metadata.putDouble("NIFTI HEADER: intent param 3", intentParams[2]);
+			metadata.putByte("NIFTI HEADER: dim info", h.dimInfo());
+		}
 
-			if (two_files) {
-				values.close();
-			}
-			hdr.close();
-			
-			return bundle;
+		metadata.putDouble("NIFTI HEADER: affine x0 parameter", srowX[0]);
+		metadata.putDouble("NIFTI HEADER: affine x1 parameter", srowX[1]);
+		metadata.putDouble("NIFTI HEADER: affine x2 parameter", srowX[2]);
+		metadata.putDouble("NIFTI HEADER: affine x3 parameter", srowX[3]);
+		metadata.putDouble("NIFTI HEADER: affine y0 parameter", srowY[0]);
+		metadata.putDouble("NIFTI HEADER: affine y1 parameter", srowY[1]);
+		metadata.putDouble("NIFTI HEADER: affine y2 parameter", srowY[2]);
+		metadata.putDouble("NIFTI HEADER: affine y3 parameter", srowY[3]);
+		metadata.putDouble("NIFTI HEADER: affine z0 parameter", srowZ[0]);
+		metadata.putDouble("NIFTI HEADER: affine z1 parameter", srowZ[1]);
+		metadata.putDouble("NIFTI HEADER: affine z2 parameter", srowZ[2]);
+		metadata.putDouble("NIFTI HEADER: affine z3 parameter", srowZ[3]);
+		
+		metadata.putString("NIFTI HEADER: intent", h.intentName());
 
-		} catch (Exception e) {
+		if (h.isAnalyze()) {
+			metadata.putString("NIFTI HEADER: nifti version", "pre NIFTI ANALYZE file");
+		}
 		
-			try {
-				if (values != hdr) { // two files
-					if (values != null)
-						values.close();
-					else if (bf2 != null)
-						bf2.close();
-					else if (f2 != null)
-						f2.close();
-				}
-				if (hdr != null)
-					hdr.close();
-				else if (bf1 != null)
-					bf1.close();
-				else if (f1 != null)
-					f1.close();
-			} catch (IOException x) {
-				;
-			}
-			System.out.println("In Nifti open " + e);
-			return new DataBundle();
+		List<NiftiExtension> extensions = h.extensions();
+		for (int i = 0; i < extensions.size(); i++) {
+			NiftiExtension ext = extensions.get(i);
+			metadata.putInt("NIFTI HEADER: extension " + i + " code", ext.code());
+			metadata.putLong("NIFTI HEADER: extension " + i + " offset", ext.offset());
+			metadata.putInt("NIFTI HEADER: extension " + i + " size", ext.size());
+		}
+		
+		NiftiExtension invalid = h.invalidExtension();
+		if (invalid != null) {
+			metadata.putInt("NIFTI HEADER: invalid extension code", invalid.code());
+			metadata.putLong("NIFTI HEADER: invalid extension offset", invalid.offset());
+			metadata.putInt("NIFTI HEADER: invalid extension size", invalid.size());
 		}
 	}
-	
-	private static Allocatable value(short data_type) {
+
+	static Allocatable value(short data_type) {
 		switch (data_type) {
 		case 1: // bit
 			throw new IllegalArgumentException("bit types should never pass through this routine");
@@ -1033,160 +1182,119 @@ public class Nifti {
 		}
 	}
 
-	private static void typeCast(Object type, int data_type) {
-		
+	static int bytesPerPixel(short data_type) {
 		switch (data_type) {
 		case 1: // bit
 			throw new IllegalArgumentException("bit types should never pass through this routine");
 		case 2: // uint8
-			typeUInt8 = (UnsignedInt8Member) type;
-			break;
+		case 256: // int8
+			return 1;
 		case 4: // int16
-			typeInt16 = (SignedInt16Member) type;
-			break;
+		case 512: // uint16
+			return 2;
+		case 128: // rgb
+			return 3;
 		case 8: // int32
-			typeInt32 = (SignedInt32Member) type;
-			break;
 		case 16: // float32
-			typeFlt = (Float32Member) type;
-			break;
+		case 768: // uint32
+		case 2304: // rgba
+			return 4;
 		case 32: // cfloat32
-			typeCFlt = (ComplexFloat32Member) type;
-			break;
 		case 64: // float64
-			typeDbl = (Float64Member) type;
-			break;
-		case 128: // rgb
-			typeRgb = (RgbMember) type;
-			break;
-		case 256: // int8
-			typeInt8 = (SignedInt8Member) type;
-			break;
-		case 512: // uint16
-			typeUInt16 = (UnsignedInt16Member) type;
-			break;
-		case 768: // uint32
-			typeUInt32 = (UnsignedInt32Member) type;
-			break;
 		case 1024: // int64
-			typeInt64 = (SignedInt64Member) type;
-			break;
 		case 1280: // uint64
-			typeUInt64 = (UnsignedInt64Member) type;
-			break;
+			return 8;
 		case 1536: // float128
-			typeQuad = (Float128Member) type;
-			break;
 		case 1792: // cfloat64
-			typeCDbl = (ComplexFloat64Member) type;
-			break;
+			return 16;
 		case 2048: // cfloat128
-			typeCQuad = (ComplexFloat128Member) type;
-			break;
-		case 2304: // rgba
-			typeArgb = (ArgbMember) type;
-			break;
+			return 32;
 		default:
 			throw new IllegalArgumentException("Unknown data type! "+data_type);
 		}
 	}
 
-	private static void readValue(DataInputStream d, short data_type, boolean swapBytes, byte[] buf128, Allocatable type) throws IOException {
+	// which axes of the data are stored reversed in the file
+	
+	static boolean[] flips(NiftiHeader header) {
+		return flips(header.isAnalyze(), header.dims().length,
+						header.srowX()[0], header.srowY()[1], header.srowZ()[2]);
+	}
+	
+	// which axes of the data are stored reversed in a file with the given sform diagonal
+	
+	static boolean[] flips(boolean is_analyze, int numD, double sx, double sy, double sz) {
+		boolean[] flips = new boolean[numD];
+		if (numD > 0)
+			flips[0] = (!is_analyze && sx < 0) || (is_analyze && sx > 0);
+		if (numD > 1)
+			flips[1] = sy > 0;
+		if (numD > 2)
+			flips[2] = sz < 0;
+		return flips;
+	}
+
+	// decode rows of voxels from the source in file order until the data is full
+	
+	static void decodeRows(VoxelSource voxels, short data_type, DimensionedDataSource data, FlipPlan plan)
+		throws IOException
+	{
+		RowDecoder decoder = RowDecoders.forType(data_type);
+		IndexedDataSource out = data.rawData();
+		int numD = data.numDimensions();
+		long d0 = data.dimension(0);
+		long numRows = 1;
+		for (int d = 1; d < numD; d++) {
+			numRows *= data.dimension(d);
+		}
+		int rowBytes = rowBytes(data_type, d0);
 		
-		byte tb;
-		short ts;
-		int ti;
-		long tl;
-		float tf;
-		double td;
-		BigDecimal tbd;
+		// a row of the data is a run of d0 consecutive storage indices. a
+		// reversed row is stored from the end of its run back to the start.
 		
-		switch (data_type) {
-		case 1: // bit
-			throw new IllegalArgumentException("bit types should never pass through this routine");
-		case 2: // uint8
-			tb = readByte(d);
-			typeUInt8.setV(tb);
-			break;
-		case 4: // int16
-			ts = readShort(d, swapBytes);
-			typeInt16.setV(ts);
-			break;
-		case 8: // int32
-			ti = readInt(d, swapBytes);
-			typeInt32.setV(ti);
-			break;
-		case 16: // float32
-			tf = readFloat(d, swapBytes);
-			typeFlt.setV(tf);
-			break;
-		case 32: // cfloat32
-			tf = readFloat(d, swapBytes);
-			typeCFlt.setR(tf);
-			tf = readFloat(d, swapBytes);
-			typeCFlt.setI(tf);
-			break;
-		case 64: // float64
-			td = readDouble(d, swapBytes);
-			typeDbl.setV(td);
-			break;
-		case 128: // rgb
-			tb = readByte(d);
-			typeRgb.setR(tb);
-			tb = readByte(d);
-			typeRgb.setG(tb);
-			tb = readByte(d);
-			typeRgb.setB(tb);
-			break;
-		case 256: // int8
-			tb = readByte(d);
-			typeInt8.setV(tb);
-			break;
-		case 512: // uint16
-			ts = readShort(d, swapBytes);
-			typeUInt16.setV(ts);
-			break;
-		case 768: // uint32
-			ti = readInt(d, swapBytes);
-			typeUInt32.setV(ti);
-			break;
-		case 1024: // int64
-			tl = readLong(d, swapBytes);
-			typeInt64.setV(tl);
-			break;
-		case 1280: // uint64
-			tl = readLong(d, swapBytes);
-			typeUInt64.setV(tl);
-			break;
-		case 1536: // float128
-			readFloat128(d, swapBytes, buf128, typeQuad);
-			break;
-		case 1792: // cfloat64
-			td = readDouble(d, swapBytes);
-			typeCDbl.setR(td);
-			td = readDouble(d, swapBytes);
-			typeCDbl.setI(td);
-			break;
-		case 2048: // cfloat128
-			readFloat128(d, swapBytes, buf128, typeCQuad.r());
-			readFloat128(d, swapBytes, buf128, typeCQuad.i());
-			break;
-		case 2304: // rgba
-			tb = readByte(d);
-			typeArgb.setR(tb);
-			tb = readByte(d);
-			typeArgb.setG(tb);
-			tb = readByte(d);
-			typeArgb.setB(tb);
-			tb = readByte(d);
-			typeArgb.setA(tb);
-			break;
-		default:
-			throw new IllegalArgumentException("Unknown data type! "+data_type);
+		long first = plan.reverseX() ? d0 - 1 : 0;
+		long step = plan.reverseX() ? -1 : 1;
+		
+		// visit the rows in file order counting along each dimension
+		
+		long[] counter = new long[numD];
+		for (long r = 0; r < numRows; r++) {
+			long index = 0;
+			long stride = d0;
+			for (int d = 1; d < numD; d++) {
+				index += plan.index(d, counter[d]) * stride;
+				stride *= data.dimension(d);
+			}
+			ByteBuffer row = voxels.nextRow(rowBytes);
+			decoder.decodeRow(row, out, index + first, d0, step);
+			for (int d = 1; d < numD; d++) {
+				if (++counter[d] < data.dimension(d))
+					break;
+				counter[d] = 0;
+			}
 		}
+	}
 
+	// the number of bytes one row of voxels of the given type occupies in a file
+	
+	static int rowBytes(short data_type, long d0) {
+		if (data_type == 1) {
+			// bit data: every row starts on a byte boundary
+			return (int) ((d0 + 7) / 8);
+		}
+		return (int) (d0 * bytesPerPixel(data_type));
 	}
+
+	// the number of bytes of voxel data a file with the given type and dims contains
 	
+	static long numBytes(short data_type, long[] dims) {
+		long rows = 1;
+		for (int i = 1; i < dims.length; i++) {
+			rows *= dims[i];
+		}
+		return rows * rowBytes(data_type, dims[0]);
+	}
+
 	private static void mergeData(DataBundle bundle, Allocatable type, DimensionedDataSource data) {
 		if (type instanceof UnsignedInt1Member) {
 			bundle.mergeUInt1(data);
@@ -1248,328 +1356,4 @@ public class Nifti {
 		else
 			throw new IllegalArgumentException("Unknown data type passed to merge() method");
 	}
-
-	private static Tuple2<Allocatable, DimensionedDataSource>
-		scale(DimensionedDataSource data, Allocatable type, double slope, double intercept)
-	{
-		long[] dims = DataSourceUtils.dimensions(data);
-		Algebra returnAlg;
-		DimensionedDataSource returnDs;
-		if (type instanceof UnsignedInt1Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<UnsignedInt1Member,Float64Member> proc = new Procedure2<UnsignedInt1Member,Float64Member>() {
-				@Override
-				public void call(UnsignedInt1Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.UINT1, G.DBL, proc, (IndexedDataSource<UnsignedInt1Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof UnsignedInt8Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<UnsignedInt8Member,Float64Member> proc = new Procedure2<UnsignedInt8Member,Float64Member>() {
-				@Override
-				public void call(UnsignedInt8Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.UINT8, G.DBL, proc, (IndexedDataSource<UnsignedInt8Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof SignedInt8Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<SignedInt8Member,Float64Member> proc = new Procedure2<SignedInt8Member,Float64Member>() {
-				@Override
-				public void call(SignedInt8Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.INT8, G.DBL, proc, (IndexedDataSource<SignedInt8Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof UnsignedInt16Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<UnsignedInt16Member,Float64Member> proc = new Procedure2<UnsignedInt16Member,Float64Member>() {
-				@Override
-				public void call(UnsignedInt16Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.UINT16, G.DBL, proc, (IndexedDataSource<UnsignedInt16Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof SignedInt16Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<SignedInt16Member,Float64Member> proc = new Procedure2<SignedInt16Member,Float64Member>() {
-				@Override
-				public void call(SignedInt16Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.INT16, G.DBL, proc, (IndexedDataSource<SignedInt16Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof UnsignedInt32Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<UnsignedInt32Member,Float64Member> proc = new Procedure2<UnsignedInt32Member,Float64Member>() {
-				@Override
-				public void call(UnsignedInt32Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.UINT32, G.DBL, proc, (IndexedDataSource<UnsignedInt32Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof SignedInt32Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<SignedInt32Member,Float64Member> proc = new Procedure2<SignedInt32Member,Float64Member>() {
-				@Override
-				public void call(SignedInt32Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.INT32, G.DBL, proc, (IndexedDataSource<SignedInt32Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof UnsignedInt64Member) {
-			returnAlg = G.HP;
-			returnDs = DimensionedStorage.allocate(G.HP.construct(), dims);
-			Procedure2<UnsignedInt64Member,HighPrecisionMember> proc = new Procedure2<UnsignedInt64Member,HighPrecisionMember>() {
-				@Override
-				public void call(UnsignedInt64Member a, HighPrecisionMember b) {
-					BigDecimal val = new BigDecimal(a.v()).multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
-					b.setV(val);
-				}
-			};
-			Transform2.compute(G.UINT64, G.HP, proc, (IndexedDataSource<UnsignedInt64Member>) data.rawData(), (IndexedDataSource<HighPrecisionMember>) returnDs.rawData());
-		}
-		else if (type instanceof SignedInt64Member) {
-			returnAlg = G.HP;
-			returnDs = DimensionedStorage.allocate(G.HP.construct(), dims);
-			Procedure2<SignedInt64Member,HighPrecisionMember> proc = new Procedure2<SignedInt64Member,HighPrecisionMember>() {
-				@Override
-				public void call(SignedInt64Member a, HighPrecisionMember b) {
-					BigDecimal val = new BigDecimal(a.v()).multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
-					b.setV(val);
-				}
-			};
-			Transform2.compute(G.INT64, G.HP, proc, (IndexedDataSource<SignedInt64Member>) data.rawData(), (IndexedDataSource<HighPrecisionMember>) returnDs.rawData());
-		}
-		else if (type instanceof Float32Member) {
-			returnAlg = G.DBL;
-			returnDs = DimensionedStorage.allocate(G.DBL.construct(), dims);
-			Procedure2<Float32Member,Float64Member> proc = new Procedure2<Float32Member,Float64Member>() {
-				@Override
-				public void call(Float32Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.FLT, G.DBL, proc, (IndexedDataSource<Float32Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof ComplexFloat32Member) {
-			returnAlg = G.CDBL;
-			returnDs = DimensionedStorage.allocate(G.CDBL.construct(), dims);
-			Procedure2<ComplexFloat32Member,ComplexFloat64Member> proc = new Procedure2<ComplexFloat32Member,ComplexFloat64Member>() {
-				@Override
-				public void call(ComplexFloat32Member a, ComplexFloat64Member b) {
-					b.setR(a.r() * slope + intercept);
-					b.setI(a.i() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.CFLT, G.CDBL, proc, (IndexedDataSource<ComplexFloat32Member>) data.rawData(), (IndexedDataSource<ComplexFloat64Member>) returnDs.rawData());
-		}
-		else if (type instanceof Float64Member) {
-			returnAlg = G.DBL;
-			returnDs = data;
-			Procedure2<Float64Member,Float64Member> proc = new Procedure2<Float64Member,Float64Member>() {
-				@Override
-				public void call(Float64Member a, Float64Member b) {
-					b.setV(a.v() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.DBL, G.DBL, proc, (IndexedDataSource<Float64Member>) data.rawData(), (IndexedDataSource<Float64Member>) returnDs.rawData());
-		}
-		else if (type instanceof ComplexFloat64Member) {
-			returnAlg = G.CDBL;
-			returnDs = data;
-			Procedure2<ComplexFloat64Member,ComplexFloat64Member> proc = new Procedure2<ComplexFloat64Member,ComplexFloat64Member>() {
-				@Override
-				public void call(ComplexFloat64Member a, ComplexFloat64Member b) {
-					b.setR(a.r() * slope + intercept);
-					b.setI(a.i() * slope + intercept);
-				}
-			};
-			Transform2.compute(G.CDBL, G.CDBL, proc, (IndexedDataSource<ComplexFloat64Member>) data.rawData(), (IndexedDataSource<ComplexFloat64Member>) returnDs.rawData());
-		}
-		else if (type instanceof Float128Member) {
-			returnAlg = G.QUAD;
-			returnDs = data;
-			Float128Member scaled = G.QUAD.construct();
-			Float128Member translation = G.QUAD.construct();
-			Procedure2<Float128Member,Float128Member> proc = new Procedure2<Float128Member,Float128Member>() {
-				@Override
-				public void call(Float128Member a, Float128Member b) {
-					G.QUAD.scaleByDouble().call(slope, a, scaled);
-					translation.setV(BigDecimal.valueOf(intercept));
-					G.QUAD.add().call(scaled, translation, b);
-				}
-			};
-			Transform2.compute(G.QUAD, G.QUAD, proc, (IndexedDataSource<Float128Member>) data.rawData(), (IndexedDataSource<Float128Member>) returnDs.rawData());
-		}
-		else if (type instanceof ComplexFloat128Member) {
-			returnAlg = G.CQUAD;
-			returnDs = data;
-			ComplexFloat128Member scaled = G.CQUAD.construct();
-			ComplexFloat128Member translation = G.CQUAD.construct();
-			Procedure2<ComplexFloat128Member,ComplexFloat128Member> proc = new Procedure2<ComplexFloat128Member,ComplexFloat128Member>() {
-				@Override
-				public void call(ComplexFloat128Member a, ComplexFloat128Member b) {
-					G.CQUAD.scaleByDouble().call(slope, a, scaled);
-					translation.setR(BigDecimal.valueOf(intercept));
-					G.CQUAD.add().call(scaled, translation, b);
-				}
-			};
-			Transform2.compute(G.CQUAD, G.CQUAD, proc, (IndexedDataSource<ComplexFloat128Member>) data.rawData(), (IndexedDataSource<ComplexFloat128Member>) returnDs.rawData());
-		}
-		else if (type instanceof HighPrecisionMember) {
-			returnAlg = G.HP;
-			returnDs = data;
-			Procedure2<HighPrecisionMember,HighPrecisionMember> proc = new Procedure2<HighPrecisionMember,HighPrecisionMember>() {
-				@Override
-				public void call(HighPrecisionMember a, HighPrecisionMember b) {
-					BigDecimal val = a.v().multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
-					b.setV(val);
-				}
-			};
-			Transform2.compute(G.HP, G.HP, proc, (IndexedDataSource<HighPrecisionMember>) data.rawData(), (IndexedDataSource<HighPrecisionMember>) returnDs.rawData());
-		}
-		else if (type instanceof ComplexHighPrecisionMember) {
-			returnAlg = G.CHP;
-			returnDs = data;
-			Procedure2<ComplexHighPrecisionMember,ComplexHighPrecisionMember> proc = new Procedure2<ComplexHighPrecisionMember,ComplexHighPrecisionMember>() {
-				@Override
-				public void call(ComplexHighPrecisionMember a, ComplexHighPrecisionMember b) {
-					BigDecimal r = a.r().multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
-					BigDecimal i = a.i().multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
-					b.setR(r);
-					b.setR(i);
-				}
-			};
-			Transform2.compute(G.CHP, G.CHP, proc, (IndexedDataSource<ComplexHighPrecisionMember>) data.rawData(), (IndexedDataSource<ComplexHighPrecisionMember>) returnDs.rawData());
-		}
-		else if (type instanceof RgbMember) {
-			// do not scale color data
-			returnAlg = G.RGB;
-			returnDs = data;
-		}
-		else if (type instanceof ArgbMember) {
-			// do not scale color data
-			returnAlg = G.ARGB;
-			returnDs = data;
-		}
-		else
-			throw new IllegalArgumentException("Unknown data type! passed to scale() method");
-		return new Tuple2(returnAlg.construct(), returnDs);
-	}
-	
-	private static byte readByte(DataInputStream str) throws IOException {
-		return str.readByte();
-	}
-	
-	private static short readShort(DataInputStream str, boolean swapBytes) throws IOException {
-		short v = str.readShort();
-		if (swapBytes) v = swapShort(v);
-		return v;
-	}
-	
-	private static int readInt(DataInputStream str, boolean swapBytes) throws IOException {
-		int v = str.readInt();
-		if (swapBytes) v = swapInt(v);
-		return v;
-	}
-	
-	private static long readLong(DataInputStream str, boolean swapBytes) throws IOException {
-		long v = str.readLong();
-		if (swapBytes) v = swapLong(v);
-		return v;
-	}
-	
-	private static float readFloat(DataInputStream str, boolean swapBytes) throws IOException {
-		if (swapBytes) {
-			int b = str.readInt();
-			b = swapInt(b);
-			return Float.intBitsToFloat(b);
-		}
-		return str.readFloat();
-	}
-	
-	private static double readDouble(DataInputStream str, boolean swapBytes) throws IOException {
-		if (swapBytes) {
-			long b = str.readLong();
-			b = swapLong(b);
-			return Double.longBitsToDouble(b);
-		}
-		return str.readDouble();
-	}
-
-	private static String readString(DataInputStream d, int maxChars) throws IOException {
-		StringBuilder str = new StringBuilder();
-		boolean done = false;
-		for (int i = 0; i < maxChars; i++) {
-			char ch = (char) readByte(d);
-			if (ch == 0) {
-				done = true;
-			}
-			if (!done) {
-				str.append(ch);
-			}
-		}
-		return str.toString();
-	}
-	
-	private static void readFloat128(DataInputStream str, boolean swapBytes, byte[] buffer, Float128Member val) throws IOException {
-		
-		if (buffer.length != 16)
-			throw new IllegalArgumentException("byte buffer has incorrect size");
-
-		if (swapBytes) {
-			for (int i = 15; i >= 0; i--) {
-				buffer[i] = str.readByte();
-			}
-		}
-		else {
-			for (int i = 0; i < 16; i++) {
-				buffer[i] = str.readByte();
-			}
-		}
-		
-		val.fromByteArray(buffer, 0);
-	}
-	
-	private static short swapShort(short in) {
-		int b0 = (in >> 0) & 0xff;
-		int b1 = (in >> 8) & 0xff;
-		return (short) ((b0 << 8) | (b1 << 0));
-	}
-	
-	private static int swapInt(int in) {
-		int b0 = (in >> 0) & 0xff;
-		int b1 = (in >> 8) & 0xff;
-		int b2 = (in >> 16) & 0xff;
-		int b3 = (in >> 24) & 0xff;
-		return (b0 << 24) | (b1 << 16) | (b2 << 8) | (b3 << 0);
-	}
-	
-	private static long swapLong(long in) {
-		long b0 = (in >> 0) & 0xff;
-		long b1 = (in >> 8) & 0xff;
-		long b2 = (in >> 16) & 0xff;
-		long b3 = (in >> 24) & 0xff;
-		long b4 = (in >> 32) & 0xff;
-		long b5 = (in >> 40) & 0xff;
-		long b6 = (in >> 48) & 0xff;
-		long b7 = (in >> 56) & 0xff;
-		return (b0 << 56) | (b1 << 48) | (b2 << 40) | (b3 << 32) | (b4 << 24) | (b5 << 16) | (b6 << 8) | (b7 << 0);
-	}
 }
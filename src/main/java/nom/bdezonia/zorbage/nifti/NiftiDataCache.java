@@ -0,0 +1,353 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.misc.DataBundle;
+import nom.bdezonia.zorbage.type.complex.highprec.ComplexHighPrecisionMember;
+import nom.bdezonia.zorbage.type.real.highprec.HighPrecisionMember;
+
+/**
+ * A cache of the decoded data sets of nifti files for programs that open
+ * the same files again and again. The cache holds as many files as fit in
+ * its memory budget. The memory of a file is weighed after it is read: the
+ * number of values its data keeps times the bytes each one takes. Data
+ * kept off the heap counts like any other. Lazily scaled data keeps its raw
+ * values and counts those. File backed data keeps none and every file
+ * counts as at least {@link #MIN_ENTRY_BYTES}. When a file does not fit the
+ * least recently used files are dropped until it does. A file that needs
+ * more than the whole budget is read but not kept. When many threads ask
+ * for a file that is not in the cache at the same time it is only read
+ * once and they all receive the same bundle.
+ * <p>
+ * The bundles handed out are shared by every caller so they should be
+ * treated as read only. Any number of threads can read them at once. Data read off the heap (see
+ * {@link NiftiReadOptions#setOffHeapStorage}) is shared too: it can not be
+ * released with Nifti.release() and the cache never releases it either.
+ * Dropping a file only drops the cache's reference to it, so a caller that
+ * is still using the data can go on using it safely. Its memory is given
+ * back when the last caller drops it and it is garbage collected; until
+ * then it is used but no longer counted against the budget. A local (file:)
+ * file whose length or last modified time has changed since it was read is
+ * read again. For a .hdr file the .img file that holds its voxels is
+ * checked too.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings("rawtypes")
+public class NiftiDataCache {
+
+	/**
+	 * The least number of bytes a cached file counts as. It stands for the
+	 * header, metadata and bookkeeping every file keeps, and stops files
+	 * whose data keeps no values from piling up without limit.
+	 */
+	public static final long MIN_ENTRY_BYTES = 4096;
+	
+	// the bytes a high precision value typically takes on the heap: the
+	// reference to it, the value and the BigDecimal in it. values with many
+	// digits take more.
+	
+	private static final long HP_BYTES = 64;
+	
+	private final long budget;
+	
+	private final NiftiReadOptions options;
+	
+	private final LinkedHashMap<URI,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private final Map<URI,CompletableFuture<DataBundle>> loads = new HashMap<>();
+	
+	private long bytesInUse = 0;
+	
+	private long hits = 0;
+	
+	private long misses = 0;
+	
+	/**
+	 * Make a cache that reads files with the default options.
+	 * 
+	 * @param budget The number of bytes the cached data can use
+	 */
+	public NiftiDataCache(long budget) {
+		this(budget, new NiftiReadOptions());
+	}
+	
+	/**
+	 * Make a cache that reads files with the given options. The options
+	 * should not be changed while the cache is in use.
+	 * 
+	 * @param budget The number of bytes the cached data can use
+	 * @param options The options every file is read with
+	 */
+	public NiftiDataCache(long budget, NiftiReadOptions options) {
+		if (budget < 1)
+			throw new IllegalArgumentException("memory budget must be positive");
+		this.budget = budget;
+		this.options = Objects.requireNonNull(options);
+	}
+	
+	/**
+	 * Returns the data sets of a file from the cache or reads them if they
+	 * are not there. A read that fails is not cached so the next get() of
+	 * the file tries again.
+	 * 
+	 * @param fileURI
+	 * @return
+	 * @throws IOException If the file can not be read. Every caller waiting
+	 *   on the same read is given the failure.
+	 */
+	public DataBundle get(URI fileURI) throws IOException {
+		
+		List<NiftiHeaderCache.Key> key = keys(fileURI);
+		
+		CompletableFuture<DataBundle> load;
+		
+		boolean owner = false;
+		
+		synchronized (this) {
+			Entry entry = entries.get(fileURI);
+			if (entry != null) {
+				if (Objects.equals(entry.key, key)) {
+					hits++;
+					return entry.bundle;
+				}
+				// the file has changed since it was read
+				remove(fileURI);
+			}
+			load = loads.get(fileURI);
+			if (load != null) {
+				// another thread is reading the file
+				hits++;
+			}
+			else {
+				misses++;
+				load = new CompletableFuture<>();
+				loads.put(fileURI, load);
+				owner = true;
+			}
+		}
+		
+		if (!owner)
+			return await(load);
+		
+		DataBundle bundle;
+		
+		long bytes;
+		
+		try {
+			
+			NiftiDataset dataset = Nifti.decode(fileURI, Nifti.readHeader(fileURI, options), options, true);
+			
+			bundle = Nifti.bundle(dataset);
+			
+			bytes = retainedBytes(dataset);
+			
+			// the data is shared by every caller waiting on the read
+			
+			OffHeapDataSource offHeap = Nifti.offHeapStorage(dataset.data());
+			
+			if (offHeap != null)
+				offHeap.setCached(true);
+			
+		} catch (Throwable e) {
+			
+			synchronized (this) {
+				loads.remove(fileURI);
+			}
+			
+			load.completeExceptionally(e);
+			
+			throw e;
+		}
+		
+		synchronized (this) {
+			loads.remove(fileURI);
+			if (bytes <= budget) {
+				while (bytesInUse + bytes > budget) {
+					remove(entries.keySet().iterator().next());
+				}
+				entries.put(fileURI, new Entry(key, bundle, bytes));
+				bytesInUse += bytes;
+			}
+		}
+		
+		load.complete(bundle);
+		
+		return bundle;
+	}
+	
+	// wait on another thread's read of a file. its failure is rethrown here
+	// so the stack trace shows this caller too.
+	
+	private static DataBundle await(CompletableFuture<DataBundle> load) throws IOException {
+		try {
+			return load.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the number of requests that found their file in the cache or
+	 * being read by another thread.
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+	
+	/**
+	 * Returns the number of requests that had to read their file.
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+	
+	/**
+	 * Returns the number of bytes the cached data uses.
+	 */
+	public synchronized long bytesInUse() {
+		return bytesInUse;
+	}
+	
+	/**
+	 * Returns the number of files in the cache.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Drop a file from the cache. Callers that hold its data can still use
+	 * it. Any read of it that is in progress is not affected.
+	 * 
+	 * @param fileURI
+	 */
+	public synchronized void invalidate(URI fileURI) {
+		remove(fileURI);
+	}
+	
+	/**
+	 * Drop every file from the cache. Callers that hold their data can still
+	 * use it. The hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytesInUse = 0;
+	}
+	
+	// the number of bytes the data of a read file keeps
+	
+	static long retainedBytes(NiftiDataset dataset) {
+		IndexedDataSource storage = dataset.data().rawData();
+		long bytes;
+		if (storage instanceof ScaledDataSource) {
+			// values are scaled as they are fetched from the raw values
+			IndexedDataSource raw = ((ScaledDataSource) storage).raw();
+			if (raw instanceof FileBackedDataSource)
+				bytes = 0;
+			else
+				bytes = valueBytes(dataset.header().dataType(), raw.size());
+		}
+		else if (storage instanceof FileBackedDataSource) {
+			bytes = 0;
+		}
+		else if (dataset.type() instanceof HighPrecisionMember) {
+			bytes = storage.size() * HP_BYTES;
+		}
+		else if (dataset.type() instanceof ComplexHighPrecisionMember) {
+			bytes = storage.size() * 2 * HP_BYTES;
+		}
+		else {
+			bytes = valueBytes(RowEncoders.dataType(dataset.type()), storage.size());
+		}
+		return Math.max(MIN_ENTRY_BYTES, bytes);
+	}
+	
+	// the bytes count values of a nifti data type take. bits are packed.
+	
+	private static long valueBytes(short data_type, long count) {
+		if (data_type == 1)
+			return (count + 7) / 8;
+		return count * Nifti.bytesPerPixel(data_type);
+	}
+	
+	// what tells whether a local file has changed since it was read: its own
+	// key and, for a .hdr file, the key of the .img file holding its voxels.
+	// a part that can not be worked out is null.
+	
+	private static List<NiftiHeaderCache.Key> keys(URI fileURI) {
+		NiftiHeaderCache.Key key;
+		NiftiHeaderCache.Key imageKey = null;
+		try {
+			key = NiftiHeaderCache.key(fileURI);
+		} catch (IOException e) {
+			key = null;
+		}
+		String name = fileURI.toString().toLowerCase();
+		if (key != null && (name.endsWith(".hdr") || name.endsWith(".hdr.gz"))) {
+			try {
+				imageKey = NiftiHeaderCache.key(NiftiFiles.imageFile(fileURI.toURL()).toURI());
+			} catch (IOException | URISyntaxException e) {
+				imageKey = null;
+			}
+		}
+		return Arrays.asList(key, imageKey);
+	}
+	
+	private void remove(URI fileURI) {
+		Entry entry = entries.remove(fileURI);
+		if (entry != null) {
+			bytesInUse -= entry.bytes;
+		}
+	}
+	
+	private static class Entry {
+		
+		private final List<NiftiHeaderCache.Key> key;
+		private final DataBundle bundle;
+		private final long bytes;
+		
+		Entry(List<NiftiHeaderCache.Key> key, DataBundle bundle, long bytes) {
+			this.key = key;
+			this.bundle = bundle;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.net.URI;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.data.DimensionedDataSource;
+
+/**
+ * The voxels of a nifti file between the stages of an asynchronous read (see
+ * {@link Nifti#decodeAsync} and {@link Nifti#scaleAsync}). It holds the
+ * decoded data along with the header it was decoded from and the type of
+ * its values.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings("rawtypes")
+public class NiftiDataset {
+
+	private final URI fileURI;
+	
+	private final NiftiHeader header;
+	
+	private final DimensionedDataSource data;
+	
+	private final Allocatable type;
+	
+	private final Region region;
+	
+	private final boolean scaled;
+	
+	NiftiDataset(URI fileURI, NiftiHeader header, DimensionedDataSource data, Allocatable type,
+					Region region, boolean scaled)
+	{
+		this.fileURI = fileURI;
+		this.header = header;
+		this.data = data;
+		this.type = type;
+		this.region = region;
+		this.scaled = scaled;
+	}
+	
+	/**
+	 * Returns the file the data was read from.
+	 */
+	public URI fileURI() {
+		return fileURI;
+	}
+	
+	/**
+	 * Returns the header the data was decoded from.
+	 */
+	public NiftiHeader header() {
+		return header;
+	}
+	
+	/**
+	 * Returns the decoded data.
+	 */
+	public DimensionedDataSource data() {
+		return data;
+	}
+	
+	/**
+	 * Returns a value of the type of the data.
+	 */
+	public Allocatable type() {
+		return type;
+	}
+	
+	/**
+	 * Returns true if the header's scl_slope and scl_inter have been applied
+	 * to the data (or the data needs no scaling).
+	 */
+	public boolean isScaled() {
+		return scaled;
+	}
+	
+	// the part of the file that was read or null if all of it was
+	
+	Region region() {
+		return region;
+	}
+}
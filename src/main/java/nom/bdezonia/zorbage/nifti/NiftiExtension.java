@@ -0,0 +1,78 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+/**
+ * The location of one header extension within a nifti header file. Only the
+ * position of the extension is recorded: its payload is never read.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+public class NiftiExtension {
+
+	private final int code;
+	private final long offset;
+	private final int size;
+	
+	/**
+	 * 
+	 * @param code The extension code (ecode) identifying the kind of extension
+	 * @param offset The byte offset of the extension within the header file
+	 * @param size The size of the extension in bytes (esize) including its 8 byte header
+	 */
+	public NiftiExtension(int code, long offset, int size) {
+		this.code = code;
+		this.offset = offset;
+		this.size = size;
+	}
+	
+	/**
+	 * The extension code (ecode) identifying the kind of extension (AFNI,
+	 * CIFTI, DICOM, etc.)
+	 */
+	public int code() {
+		return code;
+	}
+
+	/**
+	 * The byte offset of the extension within the header file. The payload
+	 * begins 8 bytes later.
+	 */
+	public long offset() {
+		return offset;
+	}
+
+	/**
+	 * The total size of the extension in bytes including its 8 byte header.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public String toString() {
+		return "extension code " + code + " at offset " + offset + " of size " + size;
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Helpers for locating and opening the files that make up a nifti data set.
+ * Files may be gzip compressed (.nii.gz, .hdr.gz, .img.gz).
+ * 
+ * @author Barry DeZonia
+ *
+ */
+class NiftiFiles {
+
+	// the size of the buffer between the stream and the parsing code
+	
+	static final int BUFFER_SIZE = 1 << 16;
+	
+	// the size of the buffer of compressed bytes fed to the inflater
+	
+	static final int GZIP_BUFFER_SIZE = 1 << 17;
+	
+	// the buffer size used when only the header of a file is wanted
+	
+	static final int HEADER_BUFFER_SIZE = 1 << 10;
+	
+	private NiftiFiles() { }
+	
+	/**
+	 * Returns true if the first bytes of the data match the gzip magic number.
+	 */
+	static boolean isGzipMagic(int b0, int b1) {
+		return b0 == 0x1f && b1 == 0x8b;
+	}
+
+	/**
+	 * Open a stream on the contents of the file at the given URL. If the file
+	 * is gzip compressed the returned stream decompresses it on the fly.
+	 * 
+	 * @param url
+	 * @return
+	 * @throws IOException
+	 */
+	static BufferedInputStream open(URL url) throws IOException {
+		return open(url, BUFFER_SIZE, GZIP_BUFFER_SIZE);
+	}
+
+	/**
+	 * Open a stream on the contents of the file at the given URL using the
+	 * given buffer sizes. If the file is gzip compressed the returned stream
+	 * decompresses it on the fly.
+	 * 
+	 * @param url
+	 * @param bufferSize The size of the buffer of (decompressed) file bytes
+	 * @param gzipBufferSize The size of the buffer of compressed file bytes
+	 * @return
+	 * @throws IOException
+	 */
+	static BufferedInputStream open(URL url, int bufferSize, int gzipBufferSize) throws IOException {
+		return open(url.openStream(), bufferSize, gzipBufferSize);
+	}
+
+	/**
+	 * Wrap a stream of the raw bytes of a file using the given buffer sizes.
+	 * If the bytes are gzip compressed the returned stream decompresses them
+	 * on the fly. The stream is closed if this fails.
+	 * 
+	 * @param in The stream of raw file bytes
+	 * @param bufferSize The size of the buffer of (decompressed) file bytes
+	 * @param gzipBufferSize The size of the buffer of compressed file bytes
+	 * @return
+	 * @throws IOException
+	 */
+	static BufferedInputStream open(InputStream in, int bufferSize, int gzipBufferSize) throws IOException {
+		PushbackInputStream str = new PushbackInputStream(in, 2);
+		try {
+			int b0 = str.read();
+			int b1 = (b0 == -1) ? -1 : str.read();
+			if (b1 != -1) str.unread(b1);
+			if (b0 != -1) str.unread(b0);
+			if (isGzipMagic(b0, b1)) {
+				return new BufferedInputStream(new GZIPInputStream(str, gzipBufferSize), bufferSize);
+			}
+			return new BufferedInputStream(str, bufferSize);
+		} catch (IOException e) {
+			str.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a stream on the contents of the file at the given URL that is
+	 * positioned offset bytes in. The stream is closed if the skip fails.
+	 * 
+	 * @param url
+	 * @param offset The number of (decompressed) bytes to skip
+	 * @return
+	 * @throws IOException
+	 */
+	static DataInputStream openAt(URL url, long offset) throws IOException {
+		return openAt(url.openStream(), offset);
+	}
+
+	/**
+	 * Wrap a stream of the raw bytes of a file, decompressing them if they
+	 * are gzip compressed, and position it offset bytes in. The stream is
+	 * closed if this fails.
+	 * 
+	 * @param in The stream of raw file bytes
+	 * @param offset The number of (decompressed) bytes to skip
+	 * @return
+	 * @throws IOException
+	 */
+	static DataInputStream openAt(InputStream in, long offset) throws IOException {
+		DataInputStream str = new DataInputStream(open(in, BUFFER_SIZE, GZIP_BUFFER_SIZE));
+		try {
+			skipFully(str, offset);
+			return str;
+		} catch (IOException e) {
+			str.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Skip exactly numBytes bytes of a stream.
+	 * 
+	 * @param str
+	 * @param numBytes
+	 * @throws IOException If the end of the stream is reached first
+	 */
+	static void skipFully(InputStream str, long numBytes) throws IOException {
+		while (numBytes > 0) {
+			long skipped = str.skip(numBytes);
+			if (skipped <= 0) {
+				// skip() can legally skip nothing: make sure we are not at the end
+				if (str.read() < 0)
+					throw new EOFException("unexpected end of file while skipping");
+				skipped = 1;
+			}
+			numBytes -= skipped;
+		}
+	}
+
+	/**
+	 * Returns true if the file an open channel reads is gzip compressed. The
+	 * magic number is read with a positional read so the position of the
+	 * channel does not change.
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	static boolean isGzipped(FileChannel channel) throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(2);
+		while (magic.hasRemaining()) {
+			if (channel.read(magic, magic.position()) < 0)
+				return false;
+		}
+		return isGzipMagic(magic.get(0) & 0xff, magic.get(1) & 0xff);
+	}
+
+	/**
+	 * Find the .img file that holds the voxels described by a .hdr file. A
+	 * compressed or uncompressed .img file is accepted for either kind of
+	 * header. If no candidate can be found the usual name is returned.
+	 * 
+	 * @param headerURL The URL of the header file
+	 * @return
+	 * @throws IOException
+	 */
+	static URL imageFile(URL headerURL) throws IOException {
+		String name = headerURL.toString();
+		String lower = name.toLowerCase();
+		String base;
+		boolean upper;
+		if (lower.endsWith(".gz")) {
+			base = name.substring(0, name.length()-3);
+		}
+		else {
+			base = name;
+		}
+		upper = base.endsWith(".HDR");
+		base = base.substring(0, Math.max(base.length()-4, 0));
+		String ext = upper ? ".IMG" : ".img";
+		String gz = upper ? ".GZ" : ".gz";
+		String[] candidates;
+		if (lower.endsWith(".gz")) {
+			candidates = new String[] {base + ext + gz, base + ext};
+		}
+		else {
+			candidates = new String[] {base + ext, base + ext + gz};
+		}
+		for (String candidate : candidates) {
+			URL url = new URL(candidate);
+			if (exists(url)) {
+				return url;
+			}
+		}
+		return new URL(candidates[0]);
+	}
+	
+	private static boolean exists(URL url) {
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return new File(url.toURI()).exists();
+			} catch (URISyntaxException | IllegalArgumentException e) {
+				return false;
+			}
+		}
+		try (InputStream str = url.openStream()) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
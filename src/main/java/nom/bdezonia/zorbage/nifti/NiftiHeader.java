@@ -0,0 +1,779 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The header of a nifti 1, nifti 2, or ANALYZE 7.5 file along with the index
+ * of its extensions. Instances are immutable.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+public class NiftiHeader {
+
+	private final int version;
+	private final boolean analyze;
+	private final boolean twoFiles;
+	private final String magic;
+	private final ByteOrder byteOrder;
+	private final int headerSize;
+	private final long[] dims;
+	private final long[] dim;
+	private final short dataType;
+	private final short bitpix;
+	private final double[] pixdim;
+	private final long voxOffset;
+	private final double sclSlope;
+	private final double sclInter;
+	private final double calMax;
+	private final double calMin;
+	private final double sliceDuration;
+	private final double toffset;
+	private final long sliceStart;
+	private final long sliceEnd;
+	private final int sliceCode;
+	private final int xyztUnits;
+	private final byte dimInfo;
+	private final int intentCode;
+	private final double[] intentParams;
+	private final String intentName;
+	private final String description;
+	private final String auxFile;
+	private final int qformCode;
+	private final int sformCode;
+	private final double quaternB;
+	private final double quaternC;
+	private final double quaternD;
+	private final double qoffsetX;
+	private final double qoffsetY;
+	private final double qoffsetZ;
+	private final double[] srowX;
+	private final double[] srowY;
+	private final double[] srowZ;
+	private final List<NiftiExtension> extensions;
+	private final NiftiExtension invalidExtension;
+	private final long dataOffset;
+	private final long bytesRead;
+	
+	private NiftiHeader(Parser p) {
+		this.version = p.version;
+		this.analyze = p.analyze;
+		this.twoFiles = p.twoFiles;
+		this.magic = p.magic;
+		this.byteOrder = p.byteOrder;
+		this.headerSize = p.headerSize;
+		this.dims = p.dims;
+		this.dim = p.dim;
+		this.dataType = p.dataType;
+		this.bitpix = p.bitpix;
+		this.pixdim = p.pixdim;
+		this.voxOffset = p.voxOffset;
+		this.sclSlope = p.sclSlope;
+		this.sclInter = p.sclInter;
+		this.calMax = p.calMax;
+		this.calMin = p.calMin;
+		this.sliceDuration = p.sliceDuration;
+		this.toffset = p.toffset;
+		this.sliceStart = p.sliceStart;
+		this.sliceEnd = p.sliceEnd;
+		this.sliceCode = p.sliceCode;
+		this.xyztUnits = p.xyztUnits;
+		this.dimInfo = p.dimInfo;
+		this.intentCode = p.intentCode;
+		this.intentParams = p.intentParams;
+		this.intentName = p.intentName;
+		this.description = p.description;
+		this.auxFile = p.auxFile;
+		this.qformCode = p.qformCode;
+		this.sformCode = p.sformCode;
+		this.quaternB = p.quaternB;
+		this.quaternC = p.quaternC;
+		this.quaternD = p.quaternD;
+		this.qoffsetX = p.qoffsetX;
+		this.qoffsetY = p.qoffsetY;
+		this.qoffsetZ = p.qoffsetZ;
+		this.srowX = p.srowX;
+		this.srowY = p.srowY;
+		this.srowZ = p.srowZ;
+		this.extensions = p.extensions;
+		this.invalidExtension = p.invalidExtension;
+		this.dataOffset = p.dataOffset;
+		this.bytesRead = p.bytesRead;
+	}
+
+	/**
+	 * Read a header and index its extensions. The fixed part of the header is
+	 * read with a single read into a buffer. Extension payloads are skipped.
+	 * Upon return the stream is positioned just past the extensions.
+	 * 
+	 * @param str The stream positioned at the start of the header
+	 * @return
+	 * @throws IOException If the data is not a nifti or ANALYZE header
+	 */
+	static NiftiHeader read(DataInputStream str) throws IOException {
+
+		Parser h = new Parser();
+		
+		byte[] sizeBytes = new byte[4];
+
+		str.readFully(sizeBytes);
+		
+		int size = ByteBuffer.wrap(sizeBytes).order(ByteOrder.BIG_ENDIAN).getInt();
+		
+		int swappedSize = ByteBuffer.wrap(sizeBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+		if (size == 348 || size == 540) {
+			h.byteOrder = ByteOrder.BIG_ENDIAN;
+		}
+		else if (swappedSize == 348 || swappedSize == 540) {
+			h.byteOrder = ByteOrder.LITTLE_ENDIAN;
+			size = swappedSize;
+		}
+		else {
+			throw new IOException("unknown header size  "+size);
+		}
+		
+		h.headerSize = size;
+		
+		byte[] bytes = new byte[size];
+		
+		System.arraycopy(sizeBytes, 0, bytes, 0, 4);
+		
+		str.readFully(bytes, 4, size - 4);
+		
+		ByteBuffer buf = ByteBuffer.wrap(bytes).order(h.byteOrder);
+		
+		if (size == 348)
+			h.parseNifti1(buf);
+		else
+			h.parseNifti2(buf);
+
+		h.bytesRead = size;
+		
+		// the extender tells us if any extensions follow the header. if so index
+		// them without reading their contents. in a single file the extensions
+		// run up to vox_offset. in a header file they run to the end of the file.
+		
+		List<NiftiExtension> extensions = new ArrayList<>();
+
+		byte[] extender = new byte[4];
+
+		boolean hasExtender;
+		
+		try {
+			str.readFully(extender);
+			hasExtender = true;
+		} catch (EOFException e) {
+			// a header file need not have an extender at all
+			if (!h.twoFiles)
+				throw e;
+			hasExtender = false;
+		}
+
+		if (hasExtender) {
+
+			h.bytesRead += 4;
+			
+			if (extender[0] != 0) {
+				h.readExtensions(str, h.twoFiles ? Long.MAX_VALUE : h.voxOffset, extensions);
+			}
+		}
+		
+		h.extensions = Collections.unmodifiableList(extensions);
+
+		if (h.twoFiles)
+			h.dataOffset = Math.max(h.voxOffset, 0);
+		else
+			h.dataOffset = Math.max(h.voxOffset, h.bytesRead);
+		
+		return new NiftiHeader(h);
+	}
+	
+	// the mutable state of a header while it is being read
+	
+	private static class Parser {
+		
+		private int version;
+		private boolean analyze;
+		private boolean twoFiles;
+		private String magic;
+		private ByteOrder byteOrder;
+		private int headerSize;
+		private long[] dims;
+		private long[] dim;
+		private short dataType;
+		private short bitpix;
+		private double[] pixdim;
+		private long voxOffset;
+		private double sclSlope;
+		private double sclInter;
+		private double calMax;
+		private double calMin;
+		private double sliceDuration;
+		private double toffset;
+		private long sliceStart;
+		private long sliceEnd;
+		private int sliceCode;
+		private int xyztUnits;
+		private byte dimInfo;
+		private int intentCode;
+		private double[] intentParams;
+		private String intentName;
+		private String description;
+		private String auxFile;
+		private int qformCode;
+		private int sformCode;
+		private double quaternB;
+		private double quaternC;
+		private double quaternD;
+		private double qoffsetX;
+		private double qoffsetY;
+		private double qoffsetZ;
+		private double[] srowX;
+		private double[] srowY;
+		private double[] srowZ;
+		private List<NiftiExtension> extensions;
+		private NiftiExtension invalidExtension;
+		private long dataOffset;
+		private long bytesRead;
+		
+		private void parseNifti1(ByteBuffer buf) {
+
+			version = 1;
+		
+			dimInfo = buf.get(39);
+
+			dim = new long[8];
+			for (int i = 0; i < 8; i++) {
+				dim[i] = buf.getShort(40 + 2*i);
+			}
+			if (dim[0] < 0 || dim[0] > 7)
+				throw new IllegalArgumentException("nifti 1 header has invalid number of dimensions "+dim[0]);
+			dims = Arrays.copyOfRange(dim, 1, 1 + (int) dim[0]);
+		
+			intentParams = new double[] {buf.getFloat(56), buf.getFloat(60), buf.getFloat(64)};
+			intentCode = buf.getShort(68);
+			dataType = buf.getShort(70);
+			bitpix = buf.getShort(72);
+			sliceStart = buf.getShort(74);
+
+			pixdim = new double[8];
+			for (int i = 0; i < 8; i++) {
+				pixdim[i] = buf.getFloat(76 + 4*i);
+			}
+		
+			voxOffset = (long) buf.getFloat(108);
+			sclSlope = buf.getFloat(112);
+			sclInter = buf.getFloat(116);
+			sliceEnd = buf.getShort(120);
+			sliceCode = buf.get(122);
+			xyztUnits = buf.get(123);
+			calMax = buf.getFloat(124);
+			calMin = buf.getFloat(128);
+			sliceDuration = buf.getFloat(132);
+			toffset = buf.getFloat(136);
+		
+			description = string(buf, 148, 80);
+			auxFile = string(buf, 228, 24);
+
+			qformCode = buf.getShort(252);
+			sformCode = buf.getShort(254);
+			quaternB = buf.getFloat(256);
+			quaternC = buf.getFloat(260);
+			quaternD = buf.getFloat(264);
+			qoffsetX = buf.getFloat(268);
+			qoffsetY = buf.getFloat(272);
+			qoffsetZ = buf.getFloat(276);
+
+			srowX = new double[4];
+			srowY = new double[4];
+			srowZ = new double[4];
+			for (int i = 0; i < 4; i++) {
+				srowX[i] = buf.getFloat(280 + 4*i);
+				srowY[i] = buf.getFloat(296 + 4*i);
+				srowZ[i] = buf.getFloat(312 + 4*i);
+			}
+		
+			intentName = string(buf, 328, 16);
+
+			byte magic0 = buf.get(344);
+			byte magic1 = buf.get(345);
+			byte magic2 = buf.get(346);
+			byte magic3 = buf.get(347);
+
+			if (magic0 == 'n' && magic1 == 'i' && magic2 == '1' && magic3 == 0) {
+				magic = "ni1";
+				twoFiles = true;
+			}
+			else if (magic0 == 'n' && magic1 == '+' && magic2 == '1' && magic3 == 0) {
+				magic = "n+1";
+				twoFiles = false;
+			}
+			else {
+				// TODO: read header as an ANALYZE 7.5 file and then read pixels correctly
+				// For now expect the current header vars will work for us as is.
+				magic = "";
+				analyze = true;
+				twoFiles = true;
+			}
+		}
+	
+		private void parseNifti2(ByteBuffer buf) {
+
+			version = 2;
+		
+			byte magic0 = buf.get(4);
+			byte magic1 = buf.get(5);
+			byte magic2 = buf.get(6);
+			byte magic3 = buf.get(7);
+
+			if (magic0 == 'n' && magic1 == 'i' && magic2 == '2' && magic3 == 0) {
+				magic = "ni2";
+				twoFiles = true;
+			}
+			else if (magic0 == 'n' && magic1 == '+' && magic2 == '2' && magic3 == 0) {
+				magic = "n+2";
+				twoFiles = false;
+			}
+			else {
+				throw new IllegalArgumentException("INVALID type 2 header");
+			}
+
+			dataType = buf.getShort(12);
+			bitpix = buf.getShort(14);
+
+			dim = new long[8];
+			for (int i = 0; i < 8; i++) {
+				dim[i] = buf.getLong(16 + 8*i);
+			}
+			if (dim[0] < 0 || dim[0] > 7)
+				throw new IllegalArgumentException("nifti 2 header has invalid number of dimensions "+dim[0]);
+			dims = Arrays.copyOfRange(dim, 1, 1 + (int) dim[0]);
+
+			intentParams = new double[] {buf.getDouble(80), buf.getDouble(88), buf.getDouble(96)};
+
+			pixdim = new double[8];
+			for (int i = 0; i < 8; i++) {
+				pixdim[i] = buf.getDouble(104 + 8*i);
+			}
+
+			voxOffset = buf.getLong(168);
+			sclSlope = buf.getDouble(176);
+			sclInter = buf.getDouble(184);
+			calMax = buf.getDouble(192);
+			calMin = buf.getDouble(200);
+			sliceDuration = buf.getDouble(208);
+			toffset = buf.getDouble(216);
+			sliceStart = buf.getLong(224);
+			sliceEnd = buf.getLong(232);
+		
+			description = string(buf, 240, 80);
+			auxFile = string(buf, 320, 24);
+		
+			qformCode = buf.getInt(344);
+			sformCode = buf.getInt(348);
+			quaternB = buf.getDouble(352);
+			quaternC = buf.getDouble(360);
+			quaternD = buf.getDouble(368);
+			qoffsetX = buf.getDouble(376);
+			qoffsetY = buf.getDouble(384);
+			qoffsetZ = buf.getDouble(392);
+
+			srowX = new double[4];
+			srowY = new double[4];
+			srowZ = new double[4];
+			for (int i = 0; i < 4; i++) {
+				srowX[i] = buf.getDouble(400 + 8*i);
+				srowY[i] = buf.getDouble(432 + 8*i);
+				srowZ[i] = buf.getDouble(464 + 8*i);
+			}
+
+			sliceCode = buf.getInt(496);
+			xyztUnits = buf.getInt(500);
+			intentCode = buf.getInt(504);
+			intentName = string(buf, 508, 16);
+			dimInfo = buf.get(524);
+		}
+
+		// Record the location of every extension up to limit. Each extension is
+		// skipped rather than read. An extension with an impossible size ends the
+		// index and is remembered as the invalid extension.
+	
+		private void readExtensions(DataInputStream str, long limit, List<NiftiExtension> extensions)
+			throws IOException
+		{
+			byte[] bytes = new byte[8];
+			ByteBuffer buf = ByteBuffer.wrap(bytes).order(byteOrder);
+			while (bytesRead + 8 <= limit) {
+				try {
+					str.readFully(bytes);
+				} catch (EOFException e) {
+					// a header file's extensions run to the end of the file
+					break;
+				}
+				int esize = buf.getInt(0);
+				int ecode = buf.getInt(4);
+				bytesRead += 8;
+				if (esize == 0) {
+					// zero padding up to the voxels
+					break;
+				}
+				if (esize < 8) {
+					invalidExtension = new NiftiExtension(ecode, bytesRead - 8, esize);
+					break;
+				}
+				extensions.add(new NiftiExtension(ecode, bytesRead - 8, esize));
+				NiftiFiles.skipFully(str, esize - 8);
+				bytesRead += esize - 8;
+			}
+		}
+	}
+	
+	private static String string(ByteBuffer buf, int offset, int maxChars) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < maxChars; i++) {
+			char ch = (char) buf.get(offset + i);
+			if (ch == 0) {
+				break;
+			}
+			str.append(ch);
+		}
+		return str.toString();
+	}
+	
+	/**
+	 * Returns 1 or 2 for nifti 1 and nifti 2 headers. ANALYZE 7.5 headers
+	 * return 1.
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * Returns true if the header did not have a nifti magic string and is
+	 * treated as an ANALYZE 7.5 header.
+	 */
+	public boolean isAnalyze() {
+		return analyze;
+	}
+
+	/**
+	 * Returns true if the voxels live in a separate .img file.
+	 */
+	public boolean isTwoFiles() {
+		return twoFiles;
+	}
+
+	/**
+	 * Returns the magic string ("n+1", "ni1", "n+2", or "ni2"). ANALYZE
+	 * headers return an empty string.
+	 */
+	public String magic() {
+		return magic;
+	}
+
+	/**
+	 * Returns the byte order of the header and its voxels.
+	 */
+	public ByteOrder byteOrder() {
+		return byteOrder;
+	}
+
+	/**
+	 * Returns the size of the fixed part of the header: 348 or 540.
+	 */
+	public int headerSize() {
+		return headerSize;
+	}
+
+	/**
+	 * Returns the number of dimensions of the voxel data.
+	 */
+	public int numDimensions() {
+		return dims.length;
+	}
+
+	/**
+	 * Returns the dimensions of the voxel data.
+	 */
+	public long[] dims() {
+		return dims.clone();
+	}
+
+	/**
+	 * Returns all 8 dim values as stored in the header. Element 0 is the number
+	 * of dimensions and elements 1 through 7 are the dimension sizes, including
+	 * the unused ones.
+	 */
+	public long[] dim() {
+		return dim.clone();
+	}
+
+	/**
+	 * Returns the size of dimension d.
+	 */
+	public long dimension(int d) {
+		return dims[d];
+	}
+
+	/**
+	 * Returns the nifti data type code of the voxels.
+	 */
+	public short dataType() {
+		return dataType;
+	}
+
+	/**
+	 * Returns the number of bits per voxel.
+	 */
+	public short bitpix() {
+		return bitpix;
+	}
+
+	/**
+	 * Returns all 8 pixdim values. Element 0 is qfac and elements 1 through 7
+	 * are the spacings along each dimension.
+	 */
+	public double[] pixdim() {
+		return pixdim.clone();
+	}
+
+	/**
+	 * Returns the spacing between voxels along each dimension.
+	 */
+	public double[] spacings() {
+		return Arrays.copyOfRange(pixdim, 1, 1 + dims.length);
+	}
+
+	/**
+	 * Returns the unit name of each dimension.
+	 */
+	public String[] units() {
+		String[] units = new String[dims.length];
+		for (int i = 0; i < dims.length; i++) {
+			if (i < 3)
+				units[i] = spaceUnits();
+			else if (i == 3)
+				units[i] = timeUnits();
+			else
+				units[i] = "unk";
+		}
+		return units;
+	}
+
+	/**
+	 * Returns the name of the units of the three spatial dimensions.
+	 */
+	public String spaceUnits() {
+		switch (xyztUnits & 0x7) {
+		case 1: return "meter";
+		case 2: return "mm";
+		case 3: return "micron";
+		default: return "unk";
+		}
+	}
+
+	/**
+	 * Returns the name of the units of the time dimension.
+	 */
+	public String timeUnits() {
+		// do these apply to time axis or the other 3 upper indices?
+		switch (xyztUnits & 0x38) {
+		case 8: return "secs";
+		case 16: return "millisecs";
+		case 24: return "microsecs";
+		case 32: return "hertz";
+		case 40: return "ppm";
+		case 48: return "rad/sec";
+		default: return "unk";
+		}
+	}
+
+	/**
+	 * Returns the byte offset of the voxels as recorded in the header.
+	 */
+	public long voxOffset() {
+		return voxOffset;
+	}
+
+	/**
+	 * Returns the byte offset of the first voxel within the file that holds
+	 * the voxels (the header file itself or the .img file).
+	 */
+	public long dataOffset() {
+		return dataOffset;
+	}
+
+	// the number of header file bytes consumed by read()
+	
+	long bytesRead() {
+		return bytesRead;
+	}
+
+	public double sclSlope() {
+		return sclSlope;
+	}
+
+	public double sclInter() {
+		return sclInter;
+	}
+
+	public double calMax() {
+		return calMax;
+	}
+
+	public double calMin() {
+		return calMin;
+	}
+
+	public double sliceDuration() {
+		return sliceDuration;
+	}
+
+	public double toffset() {
+		return toffset;
+	}
+
+	public long sliceStart() {
+		return sliceStart;
+	}
+
+	public long sliceEnd() {
+		return sliceEnd;
+	}
+
+	public int sliceCode() {
+		return sliceCode;
+	}
+
+	public int xyztUnits() {
+		return xyztUnits;
+	}
+
+	public byte dimInfo() {
+		return dimInfo;
+	}
+
+	public int intentCode() {
+		return intentCode;
+	}
+
+	/**
+	 * Returns the three intent parameters.
+	 */
+	public double[] intentParams() {
+		return intentParams.clone();
+	}
+
+	public String intentName() {
+		return intentName;
+	}
+
+	public String description() {
+		return description;
+	}
+
+	public String auxFile() {
+		return auxFile;
+	}
+
+	public int qformCode() {
+		return qformCode;
+	}
+
+	public int sformCode() {
+		return sformCode;
+	}
+
+	public double quaternB() {
+		return quaternB;
+	}
+
+	public double quaternC() {
+		return quaternC;
+	}
+
+	public double quaternD() {
+		return quaternD;
+	}
+
+	public double qoffsetX() {
+		return qoffsetX;
+	}
+
+	public double qoffsetY() {
+		return qoffsetY;
+	}
+
+	public double qoffsetZ() {
+		return qoffsetZ;
+	}
+
+	/**
+	 * Returns the first row of the sform affine transform.
+	 */
+	public double[] srowX() {
+		return srowX.clone();
+	}
+
+	/**
+	 * Returns the second row of the sform affine transform.
+	 */
+	public double[] srowY() {
+		return srowY.clone();
+	}
+
+	/**
+	 * Returns the third row of the sform affine transform.
+	 */
+	public double[] srowZ() {
+		return srowZ.clone();
+	}
+
+	/**
+	 * Returns the index of the header's extensions.
+	 */
+	public List<NiftiExtension> extensions() {
+		return extensions;
+	}
+
+	/**
+	 * Returns the extension whose size was too small to be valid, or null if
+	 * every extension was valid. Indexing stops at this extension so any
+	 * extensions after it are not in {@link #extensions()}.
+	 */
+	public NiftiExtension invalidExtension() {
+		return invalidExtension;
+	}
+}
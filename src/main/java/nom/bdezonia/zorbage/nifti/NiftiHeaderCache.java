@@ -0,0 +1,161 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of parsed nifti headers (and their extension indices) that can be
+ * shared by reads of the same files. A header is looked up by the canonical
+ * path, length and last modified time of its file so a file that changes is
+ * parsed again. Only local (file:) files are cached. Set one on the read
+ * options of repeated reads with {@link NiftiReadOptions#setHeaderCache}.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+public class NiftiHeaderCache {
+
+	private final int maxEntries;
+	
+	private final Map<Key,NiftiHeader> headers;
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Make a cache that holds up to 1024 headers.
+	 */
+	public NiftiHeaderCache() {
+		this(1024);
+	}
+	
+	/**
+	 * Make a cache that holds up to maxEntries headers. When it is full the
+	 * least recently used header is dropped.
+	 * 
+	 * @param maxEntries
+	 */
+	public NiftiHeaderCache(int maxEntries) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("a header cache must hold at least one header");
+		this.maxEntries = maxEntries;
+		this.headers = new LinkedHashMap<Key,NiftiHeader>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,NiftiHeader> eldest) {
+				return size() > NiftiHeaderCache.this.maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the number of lookups that found a parsed header.
+	 */
+	public long hits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of lookups that had to parse a header.
+	 */
+	public long misses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Returns the number of headers in the cache.
+	 */
+	public synchronized int size() {
+		return headers.size();
+	}
+	
+	/**
+	 * Forget all the headers. The hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		headers.clear();
+	}
+	
+	// the key of a file or null if the file can not be cached
+	
+	static Key key(URI fileURI) throws IOException {
+		if (!"file".equals(fileURI.getScheme()))
+			return null;
+		Path path = Paths.get(fileURI).toRealPath();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		return new Key(path.toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+	
+	// the header of a file or null if it has not been parsed. counts as a hit or a miss.
+	
+	synchronized NiftiHeader get(Key key) {
+		NiftiHeader header = headers.get(key);
+		if (header == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return header;
+	}
+	
+	synchronized void put(Key key, NiftiHeader header) {
+		headers.put(key, header);
+	}
+	
+	static final class Key {
+		
+		private final String path;
+		private final long length;
+		private final long lastModified;
+		
+		Key(String path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, length, lastModified);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options that control how {@link Nifti} reads a file.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+public class NiftiReadOptions {
+
+	private boolean memoryMapping = true;
+	
+	private boolean fileBacked = false;
+	
+	private boolean parallelDecoding = false;
+	
+	private boolean lazyScaling = false;
+	
+	private boolean offHeapStorage = false;
+	
+	private Path offHeapDirectory = null;
+	
+	private ScaledPrecision scaledPrecision = ScaledPrecision.DOUBLE;
+	
+	private int maxConcurrentReads = Runtime.getRuntime().availableProcessors();
+	
+	private long memoryBudget = Long.MAX_VALUE;
+	
+	private NiftiHeaderCache headerCache = null;
+	
+	private final Map<Integer,long[]> region = new HashMap<>();
+	
+	/**
+	 * The types that the values of data with a scl_slope are scaled into.
+	 */
+	public enum ScaledPrecision {
+		
+		/**
+		 * Integer and float32 values become doubles. 64 bit integers become
+		 * doubles too unless the slope and intercept are whole numbers. Then
+		 * the results are exact: longs when every value is in range, float128s
+		 * when they need at most 113 bits and high precision values beyond
+		 * that. Complex float32 values become complex doubles. Wider types
+		 * stay in their own type.
+		 */
+		DOUBLE,
+		
+		/**
+		 * Every type that DOUBLE would widen becomes a float32 (or a complex
+		 * float32). This takes half the memory of DOUBLE but scaled integers
+		 * with more than 24 significant bits lose precision.
+		 */
+		FLOAT,
+		
+		/**
+		 * The narrowest floating type that holds every raw value exactly: 8
+		 * and 16 bit integers and float32 values become float32s, 32 bit
+		 * integers doubles and 64 bit integers the types DOUBLE picks.
+		 */
+		NARROWEST_EXACT
+	}
+	
+	/**
+	 * Make a set of options that have their default values.
+	 */
+	public NiftiReadOptions() { }
+
+	/**
+	 * Returns true if voxel data of local files will be read from a memory
+	 * mapping of the file rather than from a stream.
+	 */
+	public boolean getMemoryMapping() {
+		return memoryMapping;
+	}
+
+	/**
+	 * Set whether voxel data of local (file:) files is read from a memory
+	 * mapping of the file. This is much faster than reading from a stream.
+	 * Data that is not in a local file is always read from a stream.
+	 * Defaults to true.
+	 */
+	public void setMemoryMapping(boolean memoryMapping) {
+		this.memoryMapping = memoryMapping;
+	}
+
+	/**
+	 * Returns true if the voxels of local files are left in the file and
+	 * decoded each time they are accessed.
+	 */
+	public boolean getFileBacked() {
+		return fileBacked;
+	}
+
+	/**
+	 * Set whether the voxels of local (file:) uncompressed files are left in
+	 * the file and decoded each time they are accessed rather than read into
+	 * memory. Reading becomes as cheap as reading the header and data larger
+	 * than the heap can be used. The returned data is read only and each
+	 * access is slower than an access of data in memory. Other files are
+	 * always read into memory. Defaults to false.
+	 */
+	public void setFileBacked(boolean fileBacked) {
+		this.fileBacked = fileBacked;
+	}
+
+	/**
+	 * Returns true if the planes of local files are decoded by many threads
+	 * at once.
+	 */
+	public boolean getParallelDecoding() {
+		return parallelDecoding;
+	}
+
+	/**
+	 * Set whether the planes of local (file:) uncompressed files are decoded
+	 * by many threads at once on the common fork/join pool. Each task reads
+	 * its own planes of the file. Other files, regions and bit data are
+	 * decoded by one thread. Defaults to false.
+	 */
+	public void setParallelDecoding(boolean parallelDecoding) {
+		this.parallelDecoding = parallelDecoding;
+	}
+
+	/**
+	 * Returns true if scaled data keeps its raw values in memory and scales
+	 * them each time they are accessed.
+	 */
+	public boolean getLazyScaling() {
+		return lazyScaling;
+	}
+
+	/**
+	 * Set whether data that has a scl_slope keeps its raw values in memory
+	 * and applies scl_slope and scl_inter each time a value is accessed
+	 * rather than storing the scaled values. An int16 file then takes 2 bytes
+	 * per voxel rather than the 8 of a double. The returned data is read only
+	 * and each access is a little slower. Defaults to false.
+	 */
+	public void setLazyScaling(boolean lazyScaling) {
+		this.lazyScaling = lazyScaling;
+	}
+
+	/**
+	 * Returns true if data read into memory is stored outside the java heap.
+	 */
+	public boolean getOffHeapStorage() {
+		return offHeapStorage;
+	}
+
+	/**
+	 * Set whether the data read into memory is stored outside the java heap
+	 * in a memory mapping of a temporary file. Large data then does not count
+	 * against the heap limit (-Xmx) and the garbage collector does not scan
+	 * it. Each access is a little slower.
+	 * <p>
+	 * The data is not free memory. Its pages are file pages: the operating
+	 * system keeps them in memory while it can and writes them to the
+	 * temporary file's disk when it can not, so a volume of many gigabytes
+	 * needs that much room on the disk. The default temporary directory is
+	 * often a memory backed file system (tmpfs) where the data takes as much
+	 * memory as it would on the heap and is limited by the size of the file
+	 * system. Use setOffHeapDirectory() to put the data on a real disk. A
+	 * read whose data does not fit in the room left on the disk fails.
+	 * <p>
+	 * Call Nifti.release() on the data to give its memory and disk space
+	 * back at once rather than when the data is garbage collected. Scaled
+	 * values of types with no nifti encoding (the rare high precision values
+	 * of scaled 64 bit integers) are kept on the heap. Defaults to false.
+	 */
+	public void setOffHeapStorage(boolean offHeapStorage) {
+		this.offHeapStorage = offHeapStorage;
+	}
+
+	/**
+	 * Returns the directory the temporary files of off heap data are made in
+	 * or null if they are made in the default temporary directory.
+	 */
+	public Path getOffHeapDirectory() {
+		return offHeapDirectory;
+	}
+
+	/**
+	 * Set the directory the temporary files of off heap data (see
+	 * setOffHeapStorage()) are made in. It should be on a disk with room for
+	 * the largest data that will be read. Defaults to null (the directory
+	 * named by the java.io.tmpdir property).
+	 */
+	public void setOffHeapDirectory(Path offHeapDirectory) {
+		this.offHeapDirectory = offHeapDirectory;
+	}
+
+	/**
+	 * Returns the precision that scaled data is stored in.
+	 */
+	public ScaledPrecision getScaledPrecision() {
+		return scaledPrecision;
+	}
+
+	/**
+	 * Set the precision of the type that data with a scl_slope is scaled
+	 * into. Defaults to DOUBLE.
+	 */
+	public void setScaledPrecision(ScaledPrecision scaledPrecision) {
+		if (scaledPrecision == null)
+			throw new IllegalArgumentException("scaled precision cannot be null");
+		this.scaledPrecision = scaledPrecision;
+	}
+
+	/**
+	 * Returns the largest number of files a batch read reads at once.
+	 */
+	public int getMaxConcurrentReads() {
+		return maxConcurrentReads;
+	}
+
+	/**
+	 * Set the largest number of files Nifti.readAll() reads at once. Defaults
+	 * to the number of processors.
+	 */
+	public void setMaxConcurrentReads(int maxConcurrentReads) {
+		if (maxConcurrentReads < 1)
+			throw new IllegalArgumentException("at least one read must be allowed at a time");
+		this.maxConcurrentReads = maxConcurrentReads;
+	}
+
+	/**
+	 * Returns the number of bytes the reads of a batch read can use at once.
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set the number of bytes of memory that the files Nifti.readAll() is
+	 * reading at any one time can need. Before a file is read its need is
+	 * estimated from its header and the read waits until the need fits in
+	 * the budget. A file that needs more than the whole budget is read when
+	 * nothing else is being read. Data that has been read is handed back to
+	 * the caller and no longer counts. Defaults to no limit.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 1)
+			throw new IllegalArgumentException("memory budget must be positive");
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns the cache that parsed headers are kept in or null if headers
+	 * are not cached.
+	 */
+	public NiftiHeaderCache getHeaderCache() {
+		return headerCache;
+	}
+
+	/**
+	 * Set a cache that the parsed headers of local (file:) files are kept in.
+	 * A file that is opened again while its length and last modified time
+	 * are unchanged reuses its parsed header and extension index rather than
+	 * parsing them again. One cache can be shared by many options. Defaults
+	 * to null (no cache).
+	 */
+	public void setHeaderCache(NiftiHeaderCache headerCache) {
+		this.headerCache = headerCache;
+	}
+
+	/**
+	 * Only read the voxels whose index along one dimension lies in a range.
+	 * Indices are those of the data as it is returned (after any axis flips
+	 * the file's orientation calls for). The returned data is sized to the
+	 * region that is read. Dimensions that have no range or indices set are
+	 * read in full.
+	 * 
+	 * @param dim The dimension number (0 = x, 1 = y, 2 = z, 3 = t, ...)
+	 * @param first The first index to read
+	 * @param last The last index to read (inclusive)
+	 */
+	public void setRange(int dim, long first, long last) {
+		if (dim < 0)
+			throw new IllegalArgumentException("dimension number cannot be negative");
+		if (first < 0 || last < first)
+			throw new IllegalArgumentException("bad range "+first+" to "+last);
+		long[] indices = new long[(int) (last - first + 1)];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = first + i;
+		}
+		region.put(dim, indices);
+	}
+
+	/**
+	 * Only read the voxels whose index along one dimension is one of the given
+	 * indices. This is useful for picking a few time points out of a long run.
+	 * The indices are read in increasing order. See setRange() for the
+	 * meaning of the indices.
+	 * 
+	 * @param dim The dimension number (0 = x, 1 = y, 2 = z, 3 = t, ...)
+	 * @param indices The indices to read
+	 */
+	public void setIndices(int dim, long... indices) {
+		if (dim < 0)
+			throw new IllegalArgumentException("dimension number cannot be negative");
+		if (indices.length == 0)
+			throw new IllegalArgumentException("at least one index must be given");
+		for (long index : indices) {
+			if (index < 0)
+				throw new IllegalArgumentException("index cannot be negative: "+index);
+		}
+		region.put(dim, indices.clone());
+	}
+
+	/**
+	 * Forget any ranges and indices so that all voxels are read.
+	 */
+	public void clearRegion() {
+		region.clear();
+	}
+
+	// the indices to read along one dimension or null if all should be read
+	
+	long[] regionIndices(int dim) {
+		long[] indices = region.get(dim);
+		return (indices == null) ? null : indices.clone();
+	}
+
+	// the largest dimension number that has a range or indices set or -1 if none do
+	
+	int regionMaxDimension() {
+		int max = -1;
+		for (int dim : region.keySet()) {
+			max = Math.max(max, dim);
+		}
+		return max;
+	}
+}
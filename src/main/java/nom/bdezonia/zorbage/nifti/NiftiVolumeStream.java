@@ -0,0 +1,244 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.data.DimensionedDataSource;
+import nom.bdezonia.zorbage.data.DimensionedStorage;
+import nom.bdezonia.zorbage.data.NdData;
+
+/**
+ * Reads the 3d volumes of a nifti file one at a time in file order: every
+ * time point and then every index of any higher dimension. Only one volume
+ * is ever held in memory. The same data source is handed out by every call
+ * to next() and is overwritten with the next volume each time, so copy it
+ * if it must be kept. Close the stream when done.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class NiftiVolumeStream implements Iterator<DimensionedDataSource>, Closeable {
+
+	private final NiftiHeader header;
+	
+	private final VoxelSource voxels;
+	
+	private final FlipPlan plan;
+	
+	private final long numVolumes;
+	
+	private final DimensionedDataSource volume;
+	
+	// the volume or, for scaled data, a view of it that scales raw values as
+	// they are decoded into it
+	
+	private final DimensionedDataSource target;
+	
+	private final Allocatable type;
+	
+	private long index = 0;
+	
+	NiftiVolumeStream(URI fileURI, NiftiReadOptions options) throws IOException {
+		
+		header = Nifti.readHeader(fileURI, options);
+		
+		long[] dims = header.dims();
+		
+		long[] volumeDims = Arrays.copyOf(dims, Math.min(3, dims.length));
+		
+		try {
+			
+			plan = new FlipPlan(volumeDims, Nifti.flips(header), null);
+			
+			long count = 1;
+			for (int i = volumeDims.length; i < dims.length; i++) {
+				count *= dims[i];
+			}
+			numVolumes = count;
+			
+			Allocatable rawType;
+			
+			// NIFTI bit data is packed 8 voxels to a byte
+			if (header.dataType() == 1) {
+				rawType = G.UINT1.construct();
+			}
+			else {
+				rawType = Nifti.value(header.dataType());
+			}
+			
+			Scaling scaling = (header.sclSlope() == 0) ? null : Scaling.of(rawType, header.sclSlope(), header.sclInter(),
+					options.getScaledPrecision());
+			
+			// scaled voxels are scaled as they are decoded so only the scaled
+			// volume is ever stored
+			
+			if (scaling == null) {
+				type = rawType;
+				volume = DimensionedStorage.allocate(type, volumeDims);
+				target = volume;
+			}
+			else {
+				type = (Allocatable) scaling.scaledAlg.construct();
+				volume = DimensionedStorage.allocate(type, volumeDims);
+				target = new NdData(volumeDims, new ScaleOnWriteDataSource(volume.rawData(), rawType,
+						header.sclSlope(), header.sclInter(), options.getScaledPrecision()));
+			}
+			
+			describe(fileURI);
+			
+			// the voxels are opened last so nothing is left open if the steps above fail
+			
+			URL imageURL = header.isTwoFiles() ? NiftiFiles.imageFile(fileURI.toURL()) : fileURI.toURL();
+			
+			if (options.getMemoryMapping() && "file".equals(fileURI.getScheme())) {
+				
+				// the channel tells whether the file is compressed and then supplies its voxels
+				
+				FileChannel channel = FileChannel.open(Paths.get(imageURL.toURI()), StandardOpenOption.READ);
+				
+				try {
+					
+					if (NiftiFiles.isGzipped(channel))
+						voxels = new StreamVoxelSource(NiftiFiles.openAt(Channels.newInputStream(channel),
+														header.dataOffset()), header.byteOrder());
+					else
+						voxels = new MappedVoxelSource(channel, header.dataOffset(),
+														Nifti.numBytes(header.dataType(), dims), header.byteOrder());
+				} catch (IOException | RuntimeException e) {
+					
+					channel.close();
+					
+					throw e;
+				}
+			}
+			else {
+				
+				voxels = new StreamVoxelSource(NiftiFiles.openAt(imageURL, header.dataOffset()), header.byteOrder());
+			}
+			
+		} catch (IllegalArgumentException | URISyntaxException e) {
+			
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the header of the file.
+	 */
+	public NiftiHeader header() {
+		return header;
+	}
+
+	/**
+	 * Returns the number of volumes in the file.
+	 */
+	public long numVolumes() {
+		return numVolumes;
+	}
+
+	/**
+	 * Returns a new value of the type of the volumes' voxels. Scaled data has
+	 * the type the voxels are scaled to.
+	 */
+	public Allocatable type() {
+		return (Allocatable) type.allocate();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return index < numVolumes;
+	}
+
+	/**
+	 * Read the next volume. The returned data source is the same one every
+	 * call returns: its previous contents are overwritten.
+	 */
+	@Override
+	public DimensionedDataSource next() {
+		if (!hasNext())
+			throw new NoSuchElementException("no more volumes in nifti file");
+		try {
+			Nifti.decodeRows(voxels, header.dataType(), target, plan);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		volume.metadata().putLong("volume index", index);
+		if (header.dims().length > 3) {
+			double time = header.toffset() + (index % header.dims()[3]) * header.spacings()[3];
+			volume.metadata().putDouble("volume time", time);
+		}
+		index++;
+		return volume;
+	}
+
+	@Override
+	public void close() throws IOException {
+		voxels.close();
+	}
+	
+	// name the volume's axes, give it the coordinate space of a whole read
+	// and attach the file's metadata
+	
+	private void describe(URI fileURI) {
+		
+		String[] axes = {"x", "y", "z"};
+		
+		String[] units = header.units();
+		
+		volume.setName("nifti file");
+		
+		volume.setSource(fileURI.toString());
+		
+		for (int i = 0; i < volume.numDimensions(); i++) {
+			volume.setAxisType(i, axes[i]);
+			volume.setAxisUnit(i, units[i]);
+		}
+		
+		volume.setCoordinateSpace(Nifti.coordinateSpace(header, volume.numDimensions(), null));
+		
+		Nifti.headerMetadata(header, volume.metadata());
+		
+		volume.metadata().putString("auxiliary file name", header.auxFile());
+		
+		volume.metadata().putString("description", header.description());
+		
+		volume.metadata().putString("intent", header.intentName());
+	}
+}
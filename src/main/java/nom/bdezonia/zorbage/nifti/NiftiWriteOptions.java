@@ -0,0 +1,121 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.nio.ByteOrder;
+
+/**
+ * Options that control how {@link Nifti} writes a file.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+public class NiftiWriteOptions {
+
+	private int version = 1;
+	
+	private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+	
+	private double[] spacings = null;
+	
+	private boolean parallelCompression = true;
+	
+	/**
+	 * Make a set of options that have their default values.
+	 */
+	public NiftiWriteOptions() { }
+
+	/**
+	 * Returns the nifti version (1 or 2) of the header that is written.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Set the nifti version (1 or 2) of the header that is written. Nifti 1
+	 * headers can only hold dimensions up to 32767. Whether a single .nii file
+	 * or a .hdr/.img pair is written depends on the name of the file. Defaults
+	 * to 1.
+	 */
+	public void setVersion(int version) {
+		if (version != 1 && version != 2)
+			throw new IllegalArgumentException("nifti version must be 1 or 2");
+		this.version = version;
+	}
+
+	/**
+	 * Returns the byte order the file is written in.
+	 */
+	public ByteOrder getByteOrder() {
+		return byteOrder;
+	}
+
+	/**
+	 * Set the byte order the file is written in. Defaults to little endian.
+	 */
+	public void setByteOrder(ByteOrder byteOrder) {
+		if (byteOrder == null)
+			throw new IllegalArgumentException("byte order cannot be null");
+		this.byteOrder = byteOrder;
+	}
+
+	/**
+	 * Returns the voxel spacings written to the header or null if every
+	 * spacing is 1.
+	 */
+	public double[] getSpacings() {
+		return (spacings == null) ? null : spacings.clone();
+	}
+
+	/**
+	 * Set the spacing of voxels along each dimension (x in mm, y in mm, z in
+	 * mm, t in secs, ...). Dimensions that are not given a spacing have a
+	 * spacing of 1. Defaults to all 1.
+	 */
+	public void setSpacings(double... spacings) {
+		for (double spacing : spacings) {
+			if (spacing <= 0)
+				throw new IllegalArgumentException("spacings must be positive");
+		}
+		this.spacings = spacings.clone();
+	}
+
+	/**
+	 * Returns true if gzip compressed files are compressed on many threads.
+	 */
+	public boolean getParallelCompression() {
+		return parallelCompression;
+	}
+
+	/**
+	 * Set whether gzip compressed (.gz) files are compressed on many threads.
+	 * When true the data is compressed in independent chunks on the common
+	 * fork/join pool and the file is a series of gzip members, which every
+	 * gzip reader accepts. Defaults to true.
+	 */
+	public void setParallelCompression(boolean parallelCompression) {
+		this.parallelCompression = parallelCompression;
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.data.DimensionedDataSource;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+
+/**
+ * Writes data to nifti 1 and nifti 2 files. A name ending in .nii makes a
+ * single file (n+1 or n+2) and a name ending in .hdr or .img makes a header
+ * and image file pair (ni1 or ni2). A name that also ends in .gz makes gzip
+ * compressed files. Voxels are encoded a row at a time into direct buffers
+ * that are handed to the file channel in gathering writes. Compressed files
+ * are compressed a chunk at a time on many threads.
+ * 
+ * The header describes the voxel spacings as a scanner sform. The rows are
+ * written in the order that makes {@link Nifti} read back the same data.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class NiftiWriter {
+
+	// the size of each of the buffers voxels are encoded into
+	
+	static final int BUFFER_SIZE = 1 << 18;
+	
+	// the number of buffers handed to each gathering write
+	
+	static final int BUFFER_COUNT = 8;
+	
+	private NiftiWriter() { }
+
+	/**
+	 * 
+	 * @param data The data to write. It must have 2 to 7 dimensions.
+	 * @param type A value of the type of the data
+	 * @param path The name of the file to write
+	 * @param options
+	 * @throws IOException
+	 */
+	static void write(DimensionedDataSource data, Allocatable type, Path path, NiftiWriteOptions options)
+		throws IOException
+	{
+		int numD = data.numDimensions();
+		if (numD < 2 || numD > 7)
+			throw new IllegalArgumentException("nifti files hold data with 2 to 7 dimensions");
+		
+		short data_type = RowEncoders.dataType(type);
+		
+		String name = path.getFileName().toString();
+		
+		// the layout of the files is decided by the name without any .gz suffix
+		
+		String gz = "";
+		
+		if (name.toLowerCase().endsWith(".gz")) {
+			gz = name.substring(name.length() - 3);
+			name = name.substring(0, name.length() - 3);
+		}
+		
+		boolean compressed = gz.length() > 0;
+		
+		String lower = name.toLowerCase();
+		
+		boolean twoFiles;
+		
+		Path headerPath, imagePath;
+		
+		if (lower.endsWith(".nii")) {
+			twoFiles = false;
+			headerPath = imagePath = path;
+		}
+		else if (lower.endsWith(".hdr")) {
+			twoFiles = true;
+			headerPath = path;
+			imagePath = path.resolveSibling(swapSuffix(name, "img") + gz);
+		}
+		else if (lower.endsWith(".img")) {
+			twoFiles = true;
+			headerPath = path.resolveSibling(swapSuffix(name, "hdr") + gz);
+			imagePath = path;
+		}
+		else
+			throw new IllegalArgumentException("nifti file names must end in .nii or .hdr or .img (optionally followed by .gz): "+path.getFileName());
+		
+		long[] dims = new long[numD];
+		for (int i = 0; i < numD; i++) {
+			dims[i] = data.dimension(i);
+		}
+		
+		double[] spacings = new double[numD];
+		double[] given = options.getSpacings();
+		for (int i = 0; i < numD; i++) {
+			spacings[i] = (given != null && i < given.length) ? given[i] : 1;
+		}
+		
+		ByteOrder order = options.getByteOrder();
+		
+		ByteBuffer header = header(options.getVersion(), twoFiles, data_type, dims, spacings,
+									data.getName(), order);
+		
+		// orient the rows the way the reader expects given the sform we wrote
+		
+		FlipPlan plan = new FlipPlan(dims,
+				Nifti.flips(false, numD, spacings[0], spacings[1], numD > 2 ? spacings[2] : 1), null);
+		
+		boolean parallel = options.getParallelCompression();
+		
+		try (FileChannel file = create(headerPath);
+				GatheringByteChannel channel = compressed ? gzip(file, parallel) : file)
+		{
+			writeFully(channel, header);
+			
+			if (twoFiles) {
+				try (FileChannel imageFile = create(imagePath);
+						GatheringByteChannel images = compressed ? gzip(imageFile, parallel) : imageFile)
+				{
+					writeVoxels(images, data, data_type, order, plan);
+				}
+			}
+			else {
+				writeVoxels(channel, data, data_type, order, plan);
+			}
+		}
+	}
+	
+	private static FileChannel create(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE,
+								StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+	
+	// compress on the common pool keeping a couple of chunks per thread in flight
+	
+	private static GatheringByteChannel gzip(FileChannel file, boolean parallel) {
+		if (parallel) {
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			return new ParallelGzipChannel(file, pool, 2 * pool.getParallelism());
+		}
+		return new ParallelGzipChannel(file, Runnable::run, 1);
+	}
+
+	// encode the voxels in file order and write them in batches of buffers
+	
+	private static void writeVoxels(GatheringByteChannel channel, DimensionedDataSource data, short data_type,
+										ByteOrder order, FlipPlan plan)
+		throws IOException
+	{
+		RowEncoder encoder = RowEncoders.forType(data_type);
+		IndexedDataSource in = data.rawData();
+		int numD = data.numDimensions();
+		long d0 = data.dimension(0);
+		long numRows = 1;
+		for (int d = 1; d < numD; d++) {
+			numRows *= data.dimension(d);
+		}
+		int rowBytes = Nifti.rowBytes(data_type, d0);
+		int rowsPerBuffer = Math.max(1, BUFFER_SIZE / Math.max(1, rowBytes));
+		ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			buffers[i] = ByteBuffer.allocateDirect(rowsPerBuffer * rowBytes).order(order);
+		}
+		int current = 0;
+		
+		// a row of the data is a run of d0 consecutive storage indices. a
+		// reversed row is taken from the end of its run back to the start.
+		
+		long first = plan.reverseX() ? d0 - 1 : 0;
+		long step = plan.reverseX() ? -1 : 1;
+		
+		// visit the rows in file order counting along each dimension
+		
+		long[] counter = new long[numD];
+		for (long r = 0; r < numRows; r++) {
+			long index = 0;
+			long stride = d0;
+			for (int d = 1; d < numD; d++) {
+				index += plan.index(d, counter[d]) * stride;
+				stride *= data.dimension(d);
+			}
+			if (buffers[current].remaining() < rowBytes) {
+				current++;
+				if (current == BUFFER_COUNT) {
+					flush(channel, buffers, current);
+					current = 0;
+				}
+			}
+			encoder.encodeRow(in, index + first, d0, step, buffers[current]);
+			for (int d = 1; d < numD; d++) {
+				if (++counter[d] < data.dimension(d))
+					break;
+				counter[d] = 0;
+			}
+		}
+		flush(channel, buffers, current + 1);
+	}
+	
+	private static void flush(GatheringByteChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+		long remaining = 0;
+		for (int i = 0; i < count; i++) {
+			buffers[i].flip();
+			remaining += buffers[i].remaining();
+		}
+		while (remaining > 0) {
+			remaining -= channel.write(buffers, 0, count);
+		}
+		for (int i = 0; i < count; i++) {
+			buffers[i].clear();
+		}
+	}
+	
+	private static void writeFully(GatheringByteChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	// build the header and the four byte extender that says no extensions follow
+	
+	private static ByteBuffer header(int version, boolean twoFiles, short data_type, long[] dims,
+										double[] spacings, String description, ByteOrder order)
+	{
+		int numD = dims.length;
+		int headerSize = (version == 1) ? 348 : 540;
+		long voxOffset = twoFiles ? 0 : headerSize + 4;
+		short bitpix = (short) ((data_type == 1) ? 1 : 8 * Nifti.bytesPerPixel(data_type));
+		int units = 2 | (numD > 3 ? 8 : 0); // mm and secs
+		double[] srowX = {spacings[0], 0, 0, 0};
+		double[] srowY = {0, spacings[1], 0, 0};
+		double[] srowZ = {0, 0, numD > 2 ? spacings[2] : 1, 0};
+		ByteBuffer buf = ByteBuffer.allocateDirect(headerSize + 4).order(order);
+		if (version == 1) {
+			buf.putInt(0, headerSize);
+			buf.put(38, (byte) 'r');
+			buf.putShort(40, (short) numD);
+			for (int i = 0; i < numD; i++) {
+				if (dims[i] > Short.MAX_VALUE)
+					throw new IllegalArgumentException("dimension "+dims[i]+" is too big for a nifti 1 header: use nifti 2");
+				buf.putShort(42 + 2*i, (short) dims[i]);
+			}
+			for (int i = numD; i < 7; i++) {
+				buf.putShort(42 + 2*i, (short) 1);
+			}
+			buf.putShort(70, data_type);
+			buf.putShort(72, bitpix);
+			buf.putFloat(76, 1); // qfac
+			for (int i = 0; i < numD; i++) {
+				buf.putFloat(80 + 4*i, (float) spacings[i]);
+			}
+			buf.putFloat(108, voxOffset);
+			buf.put(123, (byte) units);
+			putString(buf, 148, 80, description);
+			buf.putShort(254, (short) 1); // sform: scanner anatomical
+			for (int i = 0; i < 4; i++) {
+				buf.putFloat(280 + 4*i, (float) srowX[i]);
+				buf.putFloat(296 + 4*i, (float) srowY[i]);
+				buf.putFloat(312 + 4*i, (float) srowZ[i]);
+			}
+			putString(buf, 344, 4, twoFiles ? "ni1" : "n+1");
+		}
+		else {
+			buf.putInt(0, headerSize);
+			byte[] magic = {(twoFiles ? (byte) 'i' : (byte) '+'), '2', 0, '\r', '\n', 032, '\n'};
+			buf.put(4, (byte) 'n');
+			for (int i = 0; i < magic.length; i++) {
+				buf.put(5 + i, magic[i]);
+			}
+			buf.putShort(12, data_type);
+			buf.putShort(14, bitpix);
+			buf.putLong(16, numD);
+			for (int i = 0; i < 7; i++) {
+				buf.putLong(24 + 8*i, (i < numD) ? dims[i] : 1);
+			}
+			buf.putDouble(104, 1); // qfac
+			for (int i = 0; i < numD; i++) {
+				buf.putDouble(112 + 8*i, spacings[i]);
+			}
+			buf.putLong(168, voxOffset);
+			putString(buf, 240, 80, description);
+			buf.putInt(348, 1); // sform: scanner anatomical
+			for (int i = 0; i < 4; i++) {
+				buf.putDouble(400 + 8*i, srowX[i]);
+				buf.putDouble(432 + 8*i, srowY[i]);
+				buf.putDouble(464 + 8*i, srowZ[i]);
+			}
+			buf.putInt(500, units);
+		}
+		buf.clear();
+		return buf;
+	}
+	
+	// store a string in a fixed length field leaving room for a terminating 0
+	
+	private static void putString(ByteBuffer buf, int offset, int length, String s) {
+		if (s == null)
+			return;
+		byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+		for (int i = 0; i < bytes.length && i < length - 1; i++) {
+			buf.put(offset + i, bytes[i]);
+		}
+	}
+	
+	private static String swapSuffix(String name, String suffix) {
+		String base = name.substring(0, name.length() - 3);
+		boolean upper = Character.isUpperCase(name.charAt(name.length() - 1));
+		return base + (upper ? suffix.toUpperCase() : suffix);
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.storage.StorageConstruction;
+
+/**
+ * An {@link IndexedDataSource} whose values live outside the java heap in a
+ * memory mapping of a temporary file. The values are kept in their nifti
+ * encoding and are encoded and decoded as they are set and fetched. Neither
+ * the heap limit nor the direct memory limit applies to them and the garbage
+ * collector never scans them. They are not free though: the mapped pages are
+ * file pages that the operating system writes back to the temporary file's
+ * disk when memory runs short, so the file's disk must have room for all of
+ * them. The temporary file is deleted as soon as it is mapped so nothing is
+ * left behind, but its disk space is only given back with the mapping. The
+ * mapping is given back when release() is called or, failing that, when the
+ * data source is garbage collected.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class OffHeapDataSource<U> implements IndexedDataSource<U> {
+
+	// the largest region we will map at one time
+	
+	static final long WINDOW_SIZE = MappedVoxelSource.WINDOW_SIZE;
+	
+	private final short data_type;
+	
+	private final RowDecoder<U> decoder;
+	
+	private final RowEncoder<U> encoder;
+	
+	private final long voxelsPerWindow;
+	
+	private final long size;
+	
+	private volatile ByteBuffer[] windows;
+	
+	private final Path directory;
+	
+	private volatile boolean cached = false;
+	
+	// the number of accesses of the windows under way. release() waits for
+	// it to drop to zero before it unmaps them.
+	
+	private final AtomicInteger accesses = new AtomicInteger();
+	
+	/**
+	 * 
+	 * @param type A value of the type the data source holds
+	 * @param size The number of values the data source holds
+	 * @param directory The directory the temporary file is made in or null
+	 *   for the default temporary file directory
+	 * @throws IOException If the temporary file can not be made, its disk
+	 *   does not have room for the values or it can not be mapped
+	 */
+	OffHeapDataSource(Allocatable type, long size, Path directory) throws IOException {
+		this(RowEncoders.dataType(type), size, directory);
+	}
+	
+	private OffHeapDataSource(short data_type, long size, Path directory) throws IOException {
+		this.data_type = data_type;
+		this.directory = directory;
+		this.decoder = RowDecoders.forType(data_type);
+		this.encoder = RowEncoders.forType(data_type);
+		this.size = size;
+		// bit voxels are packed 8 to a byte
+		long numBytes;
+		if (data_type == 1) {
+			this.voxelsPerWindow = WINDOW_SIZE * 8;
+			numBytes = (size + 7) / 8;
+		}
+		else {
+			this.voxelsPerWindow = WINDOW_SIZE / Nifti.bytesPerPixel(data_type);
+			numBytes = size * Nifti.bytesPerPixel(data_type);
+		}
+		Path path = (directory == null) ?
+						Files.createTempFile("nifti", ".voxels") :
+						Files.createTempFile(directory, "nifti", ".voxels");
+		// check the room up front: running out of it part way through would
+		// fail a mapping or, worse, a later write to mapped memory
+		long usable = Files.getFileStore(path).getUsableSpace();
+		if (usable < numBytes) {
+			Files.deleteIfExists(path);
+			throw new IOException("off heap data needs "+numBytes+" bytes but only "+usable+
+									" are free in "+path.getParent());
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+														StandardOpenOption.DELETE_ON_CLOSE))
+		{
+			int numWindows = (int) ((size + voxelsPerWindow - 1) / voxelsPerWindow);
+			long windowBytes = (data_type == 1) ? WINDOW_SIZE : voxelsPerWindow * Nifti.bytesPerPixel(data_type);
+			ByteBuffer[] buffers = new ByteBuffer[numWindows];
+			for (int i = 0; i < numWindows; i++) {
+				long start = i * windowBytes;
+				long length = Math.min(windowBytes, numBytes - start);
+				buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+				buffers[i].order(ByteOrder.nativeOrder());
+			}
+			this.windows = buffers;
+		}
+		catch (IOException e) {
+			Files.deleteIfExists(path);
+			throw new IOException("could not map "+numBytes+" bytes of off heap data in "+
+									path.getParent()+": "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns true if values of the given type can be held off the heap. Only
+	 * types that have a nifti encoding can.
+	 * 
+	 * @param type A value of the type
+	 * @return
+	 */
+	static boolean supports(Allocatable type) {
+		try {
+			RowEncoders.dataType(type);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void set(long index, U value) {
+		if (index < 0 || index >= size)
+			throw new IllegalArgumentException("index out of bounds");
+		ByteBuffer[] buffers = enter();
+		try {
+			encoder.encodeVoxel(buffers[(int) (index / voxelsPerWindow)], 0, index % voxelsPerWindow, value);
+		}
+		finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void get(long index, U value) {
+		if (index < 0 || index >= size)
+			throw new IllegalArgumentException("index out of bounds");
+		ByteBuffer[] buffers = enter();
+		try {
+			decoder.decodeVoxel(buffers[(int) (index / voxelsPerWindow)], 0, index % voxelsPerWindow, value);
+		}
+		finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Duplicates are copied into memory of their own off the heap.
+	 */
+	@Override
+	public IndexedDataSource<U> duplicate() {
+		ByteBuffer[] buffers = enter();
+		try {
+			OffHeapDataSource<U> copy = new OffHeapDataSource<>(data_type, size, directory);
+			for (int i = 0; i < buffers.length; i++) {
+				copy.windows[i].put(buffers[i].duplicate());
+				copy.windows[i].clear();
+			}
+			return copy;
+		} catch (IOException e) {
+			throw new IllegalStateException("could not duplicate off heap data: " + e.getMessage());
+		}
+		finally {
+			accesses.decrementAndGet();
+		}
+	}
+
+	@Override
+	public StorageConstruction storageType() {
+		return StorageConstruction.MEM_VIRTUAL;
+	}
+
+	/**
+	 * Bit voxels share bytes so only one thread can set them at a time.
+	 */
+	@Override
+	public boolean accessWithOneThread() {
+		return data_type == 1;
+	}
+	
+	/**
+	 * Give the memory back to the operating system. The data source can not be
+	 * used afterwards: an access that starts once the release has begun
+	 * throws IllegalStateException. The release waits for accesses that are
+	 * already under way to finish before it unmaps the memory, so none of
+	 * them can touch unmapped memory. Releasing it again does nothing.
+	 */
+	void release() {
+		ByteBuffer[] buffers;
+		synchronized (this) {
+			buffers = windows;
+			windows = null;
+		}
+		if (buffers == null)
+			return;
+		// an access counts itself before it reads the windows so any access
+		// that saw them is counted here
+		while (accesses.get() > 0) {
+			Thread.yield();
+		}
+		for (ByteBuffer buffer : buffers) {
+			unmap(buffer);
+		}
+	}
+	
+	/**
+	 * Returns true if the data belongs to a {@link NiftiDataCache}. Such data
+	 * is shared by every user of the cache so it is never released: its
+	 * memory is given back when the last user drops it and it is garbage
+	 * collected.
+	 */
+	boolean cached() {
+		return cached;
+	}
+	
+	void setCached(boolean cached) {
+		this.cached = cached;
+	}
+	
+	// start an access of the windows. the caller must decrement accesses
+	// when it is done with them.
+	
+	private ByteBuffer[] enter() {
+		accesses.incrementAndGet();
+		ByteBuffer[] buffers = windows;
+		if (buffers == null) {
+			accesses.decrementAndGet();
+			throw new IllegalStateException("off heap data has been released");
+		}
+		return buffers;
+	}
+	
+	// a mapping can only be unmapped at once through an internal api. where
+	// that api is missing the mapping is left for the garbage collector.
+	
+	private static final Object UNSAFE;
+	
+	private static final Method INVOKE_CLEANER;
+	
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	
+	private static void unmap(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null)
+			return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A channel that gzip compresses the bytes written to it. The bytes are cut
+ * into fixed size chunks and each chunk is compressed on its own as a
+ * complete gzip member. The members are written to the underlying channel in
+ * order. Concatenated members are a valid gzip file that any gzip reader
+ * (including {@link java.util.zip.GZIPInputStream}) decompresses to the
+ * original bytes. Because the chunks are independent they can be compressed
+ * on many threads at once.
+ * 
+ * Closing this channel finishes the compressed data but does not close the
+ * underlying channel.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+class ParallelGzipChannel implements GatheringByteChannel {
+
+	// the number of uncompressed bytes in each gzip member
+	
+	static final int CHUNK_SIZE = 1 << 20;
+	
+	private final WritableByteChannel out;
+	
+	private final Executor executor;
+	
+	private final int maxPending;
+	
+	private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+	
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	
+	private int filled = 0;
+	
+	private boolean open = true;
+	
+	/**
+	 * 
+	 * @param out The channel the compressed bytes are written to
+	 * @param executor The executor that compresses the chunks
+	 * @param maxPending How many chunks can be waiting to be written at once.
+	 *   This bounds the memory used to about twice this many chunks.
+	 */
+	ParallelGzipChannel(WritableByteChannel out, Executor executor, int maxPending) {
+		if (maxPending < 1)
+			throw new IllegalArgumentException("at least one chunk must be allowed to be pending");
+		this.out = out;
+		this.executor = executor;
+		this.maxPending = maxPending;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		int count = src.remaining();
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), CHUNK_SIZE - filled);
+			src.get(chunk, filled, n);
+			filled += n;
+			if (filled == CHUNK_SIZE)
+				submit();
+		}
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			count += write(srcs[i]);
+		}
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!open)
+			return;
+		open = false;
+		// an empty file is still written as one (empty) member
+		if (filled > 0 || pending.isEmpty())
+			submit();
+		while (!pending.isEmpty()) {
+			writeOldest();
+		}
+	}
+	
+	// hand the current chunk off for compression and start a new one
+	
+	private void submit() throws IOException {
+		final byte[] data = chunk;
+		final int length = filled;
+		pending.add(CompletableFuture.supplyAsync(() -> compress(data, length), executor));
+		chunk = new byte[CHUNK_SIZE];
+		filled = 0;
+		while (pending.size() > maxPending) {
+			writeOldest();
+		}
+	}
+	
+	private void writeOldest() throws IOException {
+		byte[] member;
+		try {
+			member = pending.removeFirst().join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			throw e;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(member);
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+	}
+	
+	private static byte[] compress(byte[] data, int length) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+		try (GZIPOutputStream gz = new GZIPOutputStream(bytes, 1 << 16)) {
+			gz.write(data, 0, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
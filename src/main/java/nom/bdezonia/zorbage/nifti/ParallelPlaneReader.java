@@ -0,0 +1,193 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nom.bdezonia.zorbage.data.DimensionedDataSource;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+
+/**
+ * Decodes the planes of a local uncompressed nifti file on a
+ * {@link ForkJoinPool}. The byte offset of every plane can be computed from
+ * the dims and data type so each task reads its own range of planes out of
+ * the file with positional reads and writes its own planes of the output.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class ParallelPlaneReader {
+
+	// do not split the work into tasks that read less than this many bytes
+	
+	static final long MIN_TASK_BYTES = 1L << 20;
+	
+	private ParallelPlaneReader() { }
+
+	/**
+	 * Read all the voxels of a file into already allocated data.
+	 * 
+	 * @param channel The open file that contains the voxels
+	 * @param offset The byte offset in the file of the first voxel
+	 * @param data_type The nifti data type code
+	 * @param order The byte order of the voxel data
+	 * @param data The data to fill. It has the same dims as the file.
+	 * @param plan Where the voxels of the file go in the data
+	 * @param pool The pool to run the tasks on
+	 * @throws IOException
+	 */
+	static void read(FileChannel channel, long offset, short data_type, ByteOrder order, DimensionedDataSource data,
+						FlipPlan plan, ForkJoinPool pool)
+		throws IOException
+	{
+		long numPlanes = 1;
+		for (int i = 2; i < data.numDimensions(); i++) {
+			numPlanes *= data.dimension(i);
+		}
+		int rowBytes = Nifti.rowBytes(data_type, data.dimension(0));
+		long planeBytes = rowBytes * (data.numDimensions() > 1 ? data.dimension(1) : 1);
+		
+		// bit data is packed many voxels to a storage word and some storage
+		// can not be written by many threads: neither can be split up
+		
+		boolean serial = data_type == 1 || data.rawData().accessWithOneThread();
+		
+		if (offset < 0 || offset + numPlanes * planeBytes > channel.size()) {
+			throw new IOException("voxel data extends beyond the end of the file");
+		}
+		
+		try {
+			PlaneTask task = new PlaneTask(channel, offset, data_type, order, data, rowBytes, planeBytes,
+											plan, serial, 0, numPlanes);
+			if (serial)
+				task.compute();
+			else
+				pool.invoke(task);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	private static class PlaneTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long offset;
+		private final short data_type;
+		private final ByteOrder order;
+		private final DimensionedDataSource data;
+		private final int rowBytes;
+		private final long planeBytes;
+		private final FlipPlan plan;
+		private final boolean serial;
+		private final long firstPlane;
+		private final long lastPlane; // exclusive
+		
+		PlaneTask(FileChannel channel, long offset, short data_type, ByteOrder order, DimensionedDataSource data,
+					int rowBytes, long planeBytes, FlipPlan plan, boolean serial,
+					long firstPlane, long lastPlane)
+		{
+			this.channel = channel;
+			this.offset = offset;
+			this.data_type = data_type;
+			this.order = order;
+			this.data = data;
+			this.rowBytes = rowBytes;
+			this.planeBytes = planeBytes;
+			this.plan = plan;
+			this.serial = serial;
+			this.firstPlane = firstPlane;
+			this.lastPlane = lastPlane;
+		}
+		
+		@Override
+		protected void compute() {
+			long count = lastPlane - firstPlane;
+			if (!serial && count > 1 && count * planeBytes > MIN_TASK_BYTES) {
+				long mid = firstPlane + count / 2;
+				invokeAll(
+					new PlaneTask(channel, offset, data_type, order, data, rowBytes, planeBytes,
+									plan, serial, firstPlane, mid),
+					new PlaneTask(channel, offset, data_type, order, data, rowBytes, planeBytes,
+									plan, serial, mid, lastPlane));
+				return;
+			}
+			try {
+				decodePlanes();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		private void decodePlanes() throws IOException {
+			RowDecoder decoder = RowDecoders.forType(data_type);
+			IndexedDataSource out = data.rawData();
+			int numD = data.numDimensions();
+			long d0 = data.dimension(0);
+			long d1 = (numD > 1) ? data.dimension(1) : 1;
+			long first = plan.reverseX() ? d0 - 1 : 0;
+			long step = plan.reverseX() ? -1 : 1;
+			
+			// read a plane at a time so the buffer stays small
+			
+			ByteBuffer buf = ByteBuffer.allocate((int) planeBytes).order(order);
+			for (long p = firstPlane; p < lastPlane; p++) {
+				buf.clear();
+				long pos = offset + p * planeBytes;
+				while (buf.hasRemaining()) {
+					int n = channel.read(buf, pos + buf.position());
+					if (n < 0)
+						throw new EOFException("unexpected end of file while reading voxels");
+				}
+				buf.flip();
+				// the storage index where the plane starts
+				long planeIndex = 0;
+				long stride = d0 * d1;
+				long remainder = p;
+				for (int d = 2; d < numD; d++) {
+					long dim = data.dimension(d);
+					planeIndex += plan.index(d, remainder % dim) * stride;
+					remainder /= dim;
+					stride *= dim;
+				}
+				for (long y = 0; y < d1; y++) {
+					buf.limit((int) ((y + 1) * rowBytes));
+					buf.position((int) (y * rowBytes));
+					long index = planeIndex + ((numD > 1) ? plan.index(1, y) : 0) * d0;
+					decoder.decodeRow(buf, out, index + first, d0, step);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.data.DimensionedDataSource;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+
+/**
+ * The sub-box of a nifti file's index space that a read is limited to. Along
+ * each dimension the region is a list of increasing indices of the data as it
+ * is returned (after axis flips).
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class Region {
+
+	private final long[][] indices;
+	
+	private final long[] dims;
+	
+	private Region(long[][] indices) {
+		this.indices = indices;
+		this.dims = new long[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			dims[i] = indices[i].length;
+		}
+	}
+
+	/**
+	 * Make the region the options ask for.
+	 * 
+	 * @param options The read options
+	 * @param dims The dimensions of the whole data set
+	 * @return The region or null if the whole data set should be read
+	 */
+	static Region of(NiftiReadOptions options, long[] dims) {
+		if (options.regionMaxDimension() < 0)
+			return null;
+		if (options.regionMaxDimension() >= dims.length)
+			throw new IllegalArgumentException("region given for dimension "+options.regionMaxDimension()+
+					" of data that has "+dims.length+" dimensions");
+		long[][] indices = new long[dims.length][];
+		for (int d = 0; d < dims.length; d++) {
+			long[] given = options.regionIndices(d);
+			if (given == null) {
+				indices[d] = new long[(int) dims[d]];
+				for (int i = 0; i < indices[d].length; i++) {
+					indices[d][i] = i;
+				}
+			}
+			else {
+				Arrays.sort(given);
+				int count = 0;
+				for (int i = 0; i < given.length; i++) {
+					if (given[i] >= dims[d])
+						throw new IllegalArgumentException("region index "+given[i]+" is outside dimension "+d+
+								" which has size "+dims[d]);
+					if (count == 0 || given[i] != given[count-1]) {
+						given[count++] = given[i];
+					}
+				}
+				indices[d] = Arrays.copyOf(given, count);
+			}
+		}
+		return new Region(indices);
+	}
+
+	/**
+	 * Returns the dimensions of the data the region contains.
+	 */
+	long[] dims() {
+		return dims.clone();
+	}
+
+	/**
+	 * Returns the index of the whole data set that index i of the region
+	 * refers to along dimension d.
+	 */
+	long index(int d, long i) {
+		return indices[d][(int) i];
+	}
+
+	/**
+	 * Returns true if the region covers a run of consecutive indices along
+	 * dimension d.
+	 */
+	boolean isRange(int d) {
+		long[] idx = indices[d];
+		return idx.length == 0 || idx[idx.length-1] - idx[0] == idx.length - 1;
+	}
+
+	/**
+	 * Read the voxels of the region into memory. Only the rows the region
+	 * touches are read and of each of those only the bytes that span the
+	 * region's x indices. Everything else is skipped.
+	 * 
+	 * @param voxels The source positioned at the first voxel of the file
+	 * @param data_type The nifti data type code
+	 * @param type A value of the type of the voxels
+	 * @param data The data to fill. It has the dims of the region.
+	 * @param fileDims The dimensions of the whole data set
+	 * @param flips Which axes are stored reversed in the file
+	 * @throws IOException
+	 */
+	void read(VoxelSource voxels, short data_type, Allocatable type, DimensionedDataSource data,
+				long[] fileDims, boolean[] flips)
+		throws IOException
+	{
+		int numD = fileDims.length;
+		RowDecoder decoder = RowDecoders.forType(data_type);
+		IndexedDataSource out = data.rawData();
+		Object value = type.allocate();
+		if (data.numElements() == 0)
+			return;
+		
+		// the file x indices of the region and the span of bytes they occupy in a row
+		
+		long[] fileX = fileIndices(0, fileDims[0], flips[0]);
+		long minX = Long.MAX_VALUE;
+		long maxX = Long.MIN_VALUE;
+		for (long x : fileX) {
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+		}
+		long startByte, endByte;
+		if (data_type == 1) {
+			// bit data
+			startByte = minX / 8;
+			endByte = maxX / 8 + 1;
+		}
+		else {
+			int bytesPerPix = Nifti.bytesPerPixel(data_type);
+			startByte = minX * bytesPerPix;
+			endByte = (maxX + 1) * bytesPerPix;
+		}
+		int span = (int) (endByte - startByte);
+		long rowBytes = Nifti.rowBytes(data_type, fileDims[0]);
+		
+		// for the other dimensions visit the file indices in increasing order
+		// so the file is read front to back. remember where each one goes in
+		// the region.
+		
+		long[][] fileIdx = new long[numD][];
+		long[][] regionIdx = new long[numD][];
+		for (int d = 1; d < numD; d++) {
+			fileIdx[d] = fileIndices(d, fileDims[d], flips[d]);
+			regionIdx[d] = new long[fileIdx[d].length];
+			for (int i = 0; i < regionIdx[d].length; i++) {
+				regionIdx[d][i] = i;
+			}
+			if (flips[d]) {
+				reverse(fileIdx[d]);
+				reverse(regionIdx[d]);
+			}
+		}
+		long numRows = data.numElements() / dims[0];
+		int[] counter = new int[numD];
+		long pos = 0;
+		for (long r = 0; r < numRows; r++) {
+			long fileRow = 0;
+			long regionRow = 0;
+			long fileStride = 1;
+			long regionStride = 1;
+			for (int d = 1; d < numD; d++) {
+				fileRow += fileIdx[d][counter[d]] * fileStride;
+				regionRow += regionIdx[d][counter[d]] * regionStride;
+				fileStride *= fileDims[d];
+				regionStride *= dims[d];
+			}
+			long target = fileRow * rowBytes + startByte;
+			voxels.skip(target - pos);
+			ByteBuffer buf = voxels.nextRow(span);
+			pos = target + span;
+			int rowStart = (int) (buf.position() - startByte);
+			long base = regionRow * dims[0];
+			for (int i = 0; i < fileX.length; i++) {
+				decoder.decodeVoxel(buf, rowStart, fileX[i], value);
+				out.set(base + i, value);
+			}
+			for (int d = 1; d < numD; d++) {
+				if (++counter[d] < fileIdx[d].length)
+					break;
+				counter[d] = 0;
+			}
+		}
+	}
+
+	// the file indices of the region along a dimension in region order
+	
+	private long[] fileIndices(int d, long fileDim, boolean flip) {
+		long[] result = indices[d].clone();
+		if (flip) {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = fileDim - 1 - result[i];
+			}
+		}
+		return result;
+	}
+	
+	private static void reverse(long[] values) {
+		for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+			long tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.nio.ByteBuffer;
+
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+
+/**
+ * Decodes one whole x row of voxels at a time out of a buffer of raw file
+ * bytes and stores them in a run of the output data's storage. There is one decoder
+ * per nifti data type so the type dispatch happens once per file rather than
+ * once per voxel. Single voxels can also be decoded for data that is read
+ * lazily.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+interface RowDecoder<U> {
+
+	/**
+	 * Decode n voxels from the buffer and store them in the data source at
+	 * index, index + step, index + 2 * step, and so on. A row of the data is a
+	 * run of consecutive indices of its storage so a step of 1 stores the row
+	 * as is and a step of -1 starting at the run's last index stores it
+	 * reversed.
+	 * 
+	 * @param buf The buffer positioned at the row's first byte. Its byte order must
+	 *          match the byte order of the file.
+	 * @param out The storage of the output data
+	 * @param index The index to store the row's first voxel at
+	 * @param n The number of voxels in the row
+	 * @param step The distance between the indices of neighboring voxels
+	 */
+	void decodeRow(ByteBuffer buf, IndexedDataSource<U> out, long index, long n, long step);
+
+	/**
+	 * Decode the single voxel at column x of a row. The buffer's position is
+	 * left alone so many threads can decode out of one buffer at once.
+	 * 
+	 * @param buf The buffer containing the row. Its byte order must match the
+	 *          byte order of the file.
+	 * @param rowStart The index in the buffer of the row's first byte
+	 * @param x The column of the voxel within the row as stored in the file
+	 * @param value The value to store the voxel in
+	 */
+	void decodeVoxel(ByteBuffer buf, int rowStart, long x, U value);
+}
@@ -0,0 +1,561 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.type.color.ArgbMember;
+import nom.bdezonia.zorbage.type.color.RgbMember;
+import nom.bdezonia.zorbage.type.complex.float128.ComplexFloat128Member;
+import nom.bdezonia.zorbage.type.complex.float32.ComplexFloat32Member;
+import nom.bdezonia.zorbage.type.complex.float64.ComplexFloat64Member;
+import nom.bdezonia.zorbage.type.integer.int1.UnsignedInt1Member;
+import nom.bdezonia.zorbage.type.integer.int16.SignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int16.UnsignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int32.SignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int32.UnsignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int64.SignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int64.UnsignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int8.SignedInt8Member;
+import nom.bdezonia.zorbage.type.integer.int8.UnsignedInt8Member;
+import nom.bdezonia.zorbage.type.real.float128.Float128Member;
+import nom.bdezonia.zorbage.type.real.float32.Float32Member;
+import nom.bdezonia.zorbage.type.real.float64.Float64Member;
+
+/**
+ * The {@link RowDecoder}s for all the nifti data types.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings("rawtypes")
+class RowDecoders {
+
+	private RowDecoders() { }
+	
+	/**
+	 * Make a new decoder for the given nifti data type. Decoders hold scratch
+	 * state for decodeRow() so each read should make its own. decodeVoxel()
+	 * uses no scratch state and can be called from many threads.
+	 * 
+	 * @param data_type The nifti data type code
+	 * @return
+	 */
+	static RowDecoder forType(short data_type) {
+		switch (data_type) {
+		case 1: // bit
+			return new UInt1Decoder();
+		case 2: // uint8
+			return new UInt8Decoder();
+		case 4: // int16
+			return new Int16Decoder();
+		case 8: // int32
+			return new Int32Decoder();
+		case 16: // float32
+			return new Float32Decoder();
+		case 32: // cfloat32
+			return new ComplexFloat32Decoder();
+		case 64: // float64
+			return new Float64Decoder();
+		case 128: // rgb
+			return new RgbDecoder();
+		case 256: // int8
+			return new Int8Decoder();
+		case 512: // uint16
+			return new UInt16Decoder();
+		case 768: // uint32
+			return new UInt32Decoder();
+		case 1024: // int64
+			return new Int64Decoder();
+		case 1280: // uint64
+			return new UInt64Decoder();
+		case 1536: // float128
+			return new Float128Decoder();
+		case 1792: // cfloat64
+			return new ComplexFloat64Decoder();
+		case 2048: // cfloat128
+			return new ComplexFloat128Decoder();
+		case 2304: // rgba
+			return new ArgbDecoder();
+		default:
+			throw new IllegalArgumentException("Unknown data type! "+data_type);
+		}
+	}
+
+	private static class UInt1Decoder implements RowDecoder<UnsignedInt1Member> {
+
+		private final UnsignedInt1Member zero = G.UINT1.construct();
+
+		private final UnsignedInt1Member one = G.UINT1.construct();
+		
+		// the 8 voxels each possible byte holds. bits are packed least
+		// significant bit first so voxel k of byte b is bit k of b.
+		
+		private final UnsignedInt1Member[][] voxels = new UnsignedInt1Member[256][8];
+		
+		private UnsignedInt1Member[] row = new UnsignedInt1Member[0];
+		
+		UInt1Decoder() {
+			one.setV(1);
+			for (int b = 0; b < 256; b++) {
+				for (int k = 0; k < 8; k++) {
+					voxels[b][k] = ((b >>> k) & 1) == 0 ? zero : one;
+				}
+			}
+		}
+
+		// whole words of the row are read 64 bits at a time. a little endian
+		// read puts voxel i of the word at bit i (big endian words are byte
+		// reversed first) and each of the word's 8 bytes is expanded into
+		// the row of voxels with one copy from the table. the end of the row
+		// is read a byte at a time. the voxels are then stored in one run:
+		// the data source only takes values one at a time so there is one set
+		// per voxel.
+		
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<UnsignedInt1Member> out, long index, long n, long step) {
+			boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+			int count = (int) n;
+			if (row.length < count)
+				row = new UnsignedInt1Member[count];
+			int j = 0;
+			while (count - j >= 64) {
+				long word = buf.getLong();
+				if (bigEndian)
+					word = Long.reverseBytes(word);
+				for (int b = 0; b < 64; b += 8, j += 8) {
+					System.arraycopy(voxels[(int) (word >>> b) & 0xff], 0, row, j, 8);
+				}
+			}
+			while (j < count) {
+				System.arraycopy(voxels[buf.get() & 0xff], 0, row, j, Math.min(8, count - j));
+				j += 8;
+			}
+			for (int i = 0; i < count; i++) {
+				out.set(index, row[i]);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt1Member value) {
+			byte bucket = buf.get((int) (rowStart + x / 8));
+			value.setV((bucket & (1 << (int) (x % 8))) > 0 ? 1 : 0);
+		}
+	}
+
+	private static class UInt8Decoder implements RowDecoder<UnsignedInt8Member> {
+
+		private final UnsignedInt8Member value = G.UINT8.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<UnsignedInt8Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.get());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt8Member value) {
+			int pos = (int) (rowStart + x);
+			value.setV(buf.get(pos));
+		}
+	}
+
+	private static class Int8Decoder implements RowDecoder<SignedInt8Member> {
+
+		private final SignedInt8Member value = G.INT8.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<SignedInt8Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.get());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt8Member value) {
+			int pos = (int) (rowStart + x);
+			value.setV(buf.get(pos));
+		}
+	}
+
+	private static class UInt16Decoder implements RowDecoder<UnsignedInt16Member> {
+
+		private final UnsignedInt16Member value = G.UINT16.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<UnsignedInt16Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getShort());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt16Member value) {
+			int pos = (int) (rowStart + x * 2);
+			value.setV(buf.getShort(pos));
+		}
+	}
+
+	private static class Int16Decoder implements RowDecoder<SignedInt16Member> {
+
+		private final SignedInt16Member value = G.INT16.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<SignedInt16Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getShort());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt16Member value) {
+			int pos = (int) (rowStart + x * 2);
+			value.setV(buf.getShort(pos));
+		}
+	}
+
+	private static class UInt32Decoder implements RowDecoder<UnsignedInt32Member> {
+
+		private final UnsignedInt32Member value = G.UINT32.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<UnsignedInt32Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getInt());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt32Member value) {
+			int pos = (int) (rowStart + x * 4);
+			value.setV(buf.getInt(pos));
+		}
+	}
+
+	private static class Int32Decoder implements RowDecoder<SignedInt32Member> {
+
+		private final SignedInt32Member value = G.INT32.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<SignedInt32Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getInt());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt32Member value) {
+			int pos = (int) (rowStart + x * 4);
+			value.setV(buf.getInt(pos));
+		}
+	}
+
+	private static class UInt64Decoder implements RowDecoder<UnsignedInt64Member> {
+
+		private final UnsignedInt64Member value = G.UINT64.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<UnsignedInt64Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getLong());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt64Member value) {
+			int pos = (int) (rowStart + x * 8);
+			value.setV(buf.getLong(pos));
+		}
+	}
+
+	private static class Int64Decoder implements RowDecoder<SignedInt64Member> {
+
+		private final SignedInt64Member value = G.INT64.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<SignedInt64Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getLong());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt64Member value) {
+			int pos = (int) (rowStart + x * 8);
+			value.setV(buf.getLong(pos));
+		}
+	}
+
+	private static class Float32Decoder implements RowDecoder<Float32Member> {
+
+		private final Float32Member value = G.FLT.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<Float32Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getFloat());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, Float32Member value) {
+			int pos = (int) (rowStart + x * 4);
+			value.setV(buf.getFloat(pos));
+		}
+	}
+
+	private static class Float64Decoder implements RowDecoder<Float64Member> {
+
+		private final Float64Member value = G.DBL.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<Float64Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setV(buf.getDouble());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, Float64Member value) {
+			int pos = (int) (rowStart + x * 8);
+			value.setV(buf.getDouble(pos));
+		}
+	}
+
+	private static class Float128Decoder implements RowDecoder<Float128Member> {
+
+		private final Float128Member value = G.QUAD.construct();
+
+		private byte[] bytes = new byte[0];
+
+		// the voxel methods can be called from many threads at once so each
+		// thread has scratch of its own
+
+		private final ThreadLocal<ByteBuffer> voxelBytes = ThreadLocal.withInitial(() -> ByteBuffer.wrap(new byte[16]));
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<Float128Member> out, long index, long n, long step) {
+			if (bytes.length < n * 16)
+				bytes = new byte[(int) (n * 16)];
+			readFloat128s(buf, (int) n, bytes);
+			int offset = 0;
+			for (long i = 0; i < n; i++) {
+				value.fromByteArray(bytes, offset);
+				out.set(index, value);
+				offset += 16;
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, Float128Member value) {
+			int pos = (int) (rowStart + x * 16);
+			readFloat128(buf, pos, voxelBytes.get(), value);
+		}
+	}
+
+	private static class ComplexFloat32Decoder implements RowDecoder<ComplexFloat32Member> {
+
+		private final ComplexFloat32Member value = G.CFLT.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<ComplexFloat32Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setR(buf.getFloat());
+				value.setI(buf.getFloat());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, ComplexFloat32Member value) {
+			int pos = (int) (rowStart + x * 8);
+			value.setR(buf.getFloat(pos));
+			value.setI(buf.getFloat(pos + 4));
+		}
+	}
+
+	private static class ComplexFloat64Decoder implements RowDecoder<ComplexFloat64Member> {
+
+		private final ComplexFloat64Member value = G.CDBL.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<ComplexFloat64Member> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setR(buf.getDouble());
+				value.setI(buf.getDouble());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, ComplexFloat64Member value) {
+			int pos = (int) (rowStart + x * 16);
+			value.setR(buf.getDouble(pos));
+			value.setI(buf.getDouble(pos + 8));
+		}
+	}
+
+	private static class ComplexFloat128Decoder implements RowDecoder<ComplexFloat128Member> {
+
+		private final ComplexFloat128Member value = G.CQUAD.construct();
+
+		private byte[] bytes = new byte[0];
+
+		private final ThreadLocal<ByteBuffer> voxelBytes = ThreadLocal.withInitial(() -> ByteBuffer.wrap(new byte[16]));
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<ComplexFloat128Member> out, long index, long n, long step) {
+			if (bytes.length < n * 32)
+				bytes = new byte[(int) (n * 32)];
+			readFloat128s(buf, (int) (2 * n), bytes);
+			int offset = 0;
+			for (long i = 0; i < n; i++) {
+				value.r().fromByteArray(bytes, offset);
+				value.i().fromByteArray(bytes, offset + 16);
+				out.set(index, value);
+				offset += 32;
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, ComplexFloat128Member value) {
+			int pos = (int) (rowStart + x * 32);
+			ByteBuffer scratch = voxelBytes.get();
+			readFloat128(buf, pos, scratch, value.r());
+			readFloat128(buf, pos + 16, scratch, value.i());
+		}
+	}
+
+	private static class RgbDecoder implements RowDecoder<RgbMember> {
+
+		private final RgbMember value = G.RGB.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<RgbMember> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setR(buf.get());
+				value.setG(buf.get());
+				value.setB(buf.get());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, RgbMember value) {
+			int pos = (int) (rowStart + x * 3);
+			value.setR(buf.get(pos));
+			value.setG(buf.get(pos + 1));
+			value.setB(buf.get(pos + 2));
+		}
+	}
+
+	private static class ArgbDecoder implements RowDecoder<ArgbMember> {
+
+		private final ArgbMember value = G.ARGB.construct();
+
+		@Override
+		public void decodeRow(ByteBuffer buf, IndexedDataSource<ArgbMember> out, long index, long n, long step) {
+			for (long i = 0; i < n; i++) {
+				value.setR(buf.get());
+				value.setG(buf.get());
+				value.setB(buf.get());
+				value.setA(buf.get());
+				out.set(index, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void decodeVoxel(ByteBuffer buf, int rowStart, long x, ArgbMember value) {
+			int pos = (int) (rowStart + x * 4);
+			value.setR(buf.get(pos));
+			value.setG(buf.get(pos + 1));
+			value.setB(buf.get(pos + 2));
+			value.setA(buf.get(pos + 3));
+		}
+	}
+
+	// ieee 128 bit floats are stored with the most significant byte first
+	// unless the file is little endian. read count of them into the array in
+	// the most significant byte first layout fromByteArray() expects. big
+	// endian values are copied in bulk. little endian values are moved a 64
+	// bit word at a time: the buffer's byte order reverses each word and the
+	// two words of each value trade places.
+	
+	static void readFloat128s(ByteBuffer buf, int count, byte[] bytes) {
+		int length = count * 16;
+		if (buf.order() == ByteOrder.BIG_ENDIAN) {
+			buf.get(bytes, 0, length);
+		}
+		else {
+			ByteBuffer out = ByteBuffer.wrap(bytes, 0, length);
+			for (int offset = 0; offset < length; offset += 16) {
+				long low = buf.getLong();
+				long high = buf.getLong();
+				out.putLong(offset, high);
+				out.putLong(offset + 8, low);
+			}
+		}
+	}
+
+	// read the one value at an absolute position in the same way. scratch
+	// wraps a 16 byte array.
+	
+	private static void readFloat128(ByteBuffer buf, int pos, ByteBuffer scratch, Float128Member val) {
+		boolean swap = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		scratch.putLong(0, buf.getLong(swap ? pos + 8 : pos));
+		scratch.putLong(8, buf.getLong(swap ? pos : pos + 8));
+		val.fromByteArray(scratch.array(), 0);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.nio.ByteBuffer;
+
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+
+/**
+ * Encodes one whole x row of voxels at a time from a run of the data's storage into a
+ * buffer of raw file bytes, or a single voxel at a time. This is the inverse
+ * of a {@link RowDecoder}.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+interface RowEncoder<U> {
+
+	/**
+	 * Encode n voxels taken from the data source at index, index + step,
+	 * index + 2 * step, and so on and put them in the buffer. A row of the
+	 * data is a run of consecutive indices of its storage so a step of 1
+	 * takes the row as is and a step of -1 starting at the run's last index
+	 * takes it reversed.
+	 * 
+	 * @param in The storage of the data being written
+	 * @param index The index of the row's first voxel
+	 * @param n The number of voxels in the row
+	 * @param step The distance between the indices of neighboring voxels
+	 * @param buf The buffer to put the bytes in at its position. Its byte order
+	 *          must match the byte order of the file.
+	 */
+	void encodeRow(IndexedDataSource<U> in, long index, long n, long step, ByteBuffer buf);
+
+	/**
+	 * Encode a single voxel into column x of a row. The buffer's position is
+	 * left alone so many threads can encode into one buffer at once as long
+	 * as they do not share bytes (bit voxels share a byte with 7 others).
+	 * 
+	 * @param buf The buffer containing the row. Its byte order must match the
+	 *          byte order of the file.
+	 * @param rowStart The index in the buffer of the row's first byte
+	 * @param x The column of the voxel within the row as stored in the file
+	 * @param value The value to encode
+	 */
+	void encodeVoxel(ByteBuffer buf, int rowStart, long x, U value);
+}
@@ -0,0 +1,575 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.type.color.ArgbMember;
+import nom.bdezonia.zorbage.type.color.RgbMember;
+import nom.bdezonia.zorbage.type.complex.float128.ComplexFloat128Member;
+import nom.bdezonia.zorbage.type.complex.float32.ComplexFloat32Member;
+import nom.bdezonia.zorbage.type.complex.float64.ComplexFloat64Member;
+import nom.bdezonia.zorbage.type.integer.int1.UnsignedInt1Member;
+import nom.bdezonia.zorbage.type.integer.int16.SignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int16.UnsignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int32.SignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int32.UnsignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int64.SignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int64.UnsignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int8.SignedInt8Member;
+import nom.bdezonia.zorbage.type.integer.int8.UnsignedInt8Member;
+import nom.bdezonia.zorbage.type.real.float128.Float128Member;
+import nom.bdezonia.zorbage.type.real.float32.Float32Member;
+import nom.bdezonia.zorbage.type.real.float64.Float64Member;
+
+/**
+ * The {@link RowEncoder}s for all the nifti data types.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings("rawtypes")
+class RowEncoders {
+
+	private RowEncoders() { }
+	
+	/**
+	 * Returns the nifti data type code that values of the given type are
+	 * written as.
+	 * 
+	 * @param type A value of the type
+	 * @return
+	 */
+	static short dataType(Allocatable type) {
+		if (type instanceof UnsignedInt1Member)
+			return 1; // bit
+		else if (type instanceof UnsignedInt8Member)
+			return 2; // uint8
+		else if (type instanceof SignedInt16Member)
+			return 4; // int16
+		else if (type instanceof SignedInt32Member)
+			return 8; // int32
+		else if (type instanceof Float32Member)
+			return 16; // float32
+		else if (type instanceof ComplexFloat32Member)
+			return 32; // cfloat32
+		else if (type instanceof Float64Member)
+			return 64; // float64
+		else if (type instanceof RgbMember)
+			return 128; // rgb
+		else if (type instanceof SignedInt8Member)
+			return 256; // int8
+		else if (type instanceof UnsignedInt16Member)
+			return 512; // uint16
+		else if (type instanceof UnsignedInt32Member)
+			return 768; // uint32
+		else if (type instanceof SignedInt64Member)
+			return 1024; // int64
+		else if (type instanceof UnsignedInt64Member)
+			return 1280; // uint64
+		else if (type instanceof Float128Member)
+			return 1536; // float128
+		else if (type instanceof ComplexFloat64Member)
+			return 1792; // cfloat64
+		else if (type instanceof ComplexFloat128Member)
+			return 2048; // cfloat128
+		else if (type instanceof ArgbMember)
+			return 2304; // rgba
+		else
+			throw new IllegalArgumentException("Cannot write values of type "+type.getClass().getSimpleName()+" to a nifti file");
+	}
+	
+	/**
+	 * Make a new encoder for the given nifti data type. Encoders hold scratch
+	 * state so each write should make its own.
+	 * 
+	 * @param data_type The nifti data type code
+	 * @return
+	 */
+	static RowEncoder forType(short data_type) {
+		switch (data_type) {
+		case 1: // bit
+			return new UInt1Encoder();
+		case 2: // uint8
+			return new UInt8Encoder();
+		case 4: // int16
+			return new Int16Encoder();
+		case 8: // int32
+			return new Int32Encoder();
+		case 16: // float32
+			return new Float32Encoder();
+		case 32: // cfloat32
+			return new ComplexFloat32Encoder();
+		case 64: // float64
+			return new Float64Encoder();
+		case 128: // rgb
+			return new RgbEncoder();
+		case 256: // int8
+			return new Int8Encoder();
+		case 512: // uint16
+			return new UInt16Encoder();
+		case 768: // uint32
+			return new UInt32Encoder();
+		case 1024: // int64
+			return new Int64Encoder();
+		case 1280: // uint64
+			return new UInt64Encoder();
+		case 1536: // float128
+			return new Float128Encoder();
+		case 1792: // cfloat64
+			return new ComplexFloat64Encoder();
+		case 2048: // cfloat128
+			return new ComplexFloat128Encoder();
+		case 2304: // rgba
+			return new ArgbEncoder();
+		default:
+			throw new IllegalArgumentException("Unknown data type! "+data_type);
+		}
+	}
+
+	private static class UInt1Encoder implements RowEncoder<UnsignedInt1Member> {
+
+		private final UnsignedInt1Member value = G.UINT1.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<UnsignedInt1Member> in, long index, long n, long step, ByteBuffer buf) {
+			int bucket = 0;
+			for (long i = 0; i < n; i++) {
+				int bitNum = (int) (i % 8);
+				in.get(index, value);
+				if (value.v() != 0) {
+					bucket |= 1 << bitNum;
+				}
+				if (bitNum == 7 || i == n - 1) {
+					buf.put((byte) bucket);
+					bucket = 0;
+				}
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt1Member value) {
+			int pos = (int) (rowStart + x / 8);
+			int bit = 1 << (int) (x % 8);
+			byte bucket = buf.get(pos);
+			buf.put(pos, (byte) ((value.v() != 0) ? (bucket | bit) : (bucket & ~bit)));
+		}
+	}
+
+	private static class UInt8Encoder implements RowEncoder<UnsignedInt8Member> {
+
+		private final UnsignedInt8Member value = G.UINT8.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<UnsignedInt8Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.put((byte) value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt8Member value) {
+			int pos = (int) (rowStart + x);
+			buf.put(pos, (byte) value.v());
+		}
+	}
+
+	private static class Int8Encoder implements RowEncoder<SignedInt8Member> {
+
+		private final SignedInt8Member value = G.INT8.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<SignedInt8Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.put((byte) value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt8Member value) {
+			int pos = (int) (rowStart + x);
+			buf.put(pos, (byte) value.v());
+		}
+	}
+
+	private static class UInt16Encoder implements RowEncoder<UnsignedInt16Member> {
+
+		private final UnsignedInt16Member value = G.UINT16.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<UnsignedInt16Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putShort((short) value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt16Member value) {
+			int pos = (int) (rowStart + x * 2);
+			buf.putShort(pos, (short) value.v());
+		}
+	}
+
+	private static class Int16Encoder implements RowEncoder<SignedInt16Member> {
+
+		private final SignedInt16Member value = G.INT16.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<SignedInt16Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putShort((short) value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt16Member value) {
+			int pos = (int) (rowStart + x * 2);
+			buf.putShort(pos, (short) value.v());
+		}
+	}
+
+	private static class UInt32Encoder implements RowEncoder<UnsignedInt32Member> {
+
+		private final UnsignedInt32Member value = G.UINT32.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<UnsignedInt32Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putInt((int) value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt32Member value) {
+			int pos = (int) (rowStart + x * 4);
+			buf.putInt(pos, (int) value.v());
+		}
+	}
+
+	private static class Int32Encoder implements RowEncoder<SignedInt32Member> {
+
+		private final SignedInt32Member value = G.INT32.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<SignedInt32Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putInt(value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt32Member value) {
+			int pos = (int) (rowStart + x * 4);
+			buf.putInt(pos, value.v());
+		}
+	}
+
+	private static class UInt64Encoder implements RowEncoder<UnsignedInt64Member> {
+
+		private final UnsignedInt64Member value = G.UINT64.construct();
+		
+		// the raw bits are read without going through a BigInteger. many
+		// threads can encode single voxels at once so each gets its own array.
+		
+		private final long[] raw = new long[1];
+		
+		private final ThreadLocal<long[]> voxelRaw = ThreadLocal.withInitial(() -> new long[1]);
+
+		@Override
+		public void encodeRow(IndexedDataSource<UnsignedInt64Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				value.toLongArray(raw, 0);
+				buf.putLong(raw[0]);
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, UnsignedInt64Member value) {
+			int pos = (int) (rowStart + x * 8);
+			long[] bits = voxelRaw.get();
+			value.toLongArray(bits, 0);
+			buf.putLong(pos, bits[0]);
+		}
+	}
+
+	private static class Int64Encoder implements RowEncoder<SignedInt64Member> {
+
+		private final SignedInt64Member value = G.INT64.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<SignedInt64Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putLong(value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, SignedInt64Member value) {
+			int pos = (int) (rowStart + x * 8);
+			buf.putLong(pos, value.v());
+		}
+	}
+
+	private static class Float32Encoder implements RowEncoder<Float32Member> {
+
+		private final Float32Member value = G.FLT.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<Float32Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putFloat(value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, Float32Member value) {
+			int pos = (int) (rowStart + x * 4);
+			buf.putFloat(pos, value.v());
+		}
+	}
+
+	private static class Float64Encoder implements RowEncoder<Float64Member> {
+
+		private final Float64Member value = G.DBL.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<Float64Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putDouble(value.v());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, Float64Member value) {
+			int pos = (int) (rowStart + x * 8);
+			buf.putDouble(pos, value.v());
+		}
+	}
+
+	private static class Float128Encoder implements RowEncoder<Float128Member> {
+
+		private final Float128Member value = G.QUAD.construct();
+
+		private final byte[] bytes = new byte[16];
+
+		private final ByteBuffer words = ByteBuffer.wrap(bytes);
+
+		// the voxel methods can be called from many threads at once so each
+		// thread has scratch of its own
+
+		private final ThreadLocal<ByteBuffer> voxelBytes = ThreadLocal.withInitial(() -> ByteBuffer.wrap(new byte[16]));
+
+		@Override
+		public void encodeRow(IndexedDataSource<Float128Member> in, long index, long n, long step, ByteBuffer buf) {
+			boolean swap = buf.order() == ByteOrder.LITTLE_ENDIAN;
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				writeFloat128(buf, swap, bytes, words, value);
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, Float128Member value) {
+			int pos = (int) (rowStart + x * 16);
+			writeFloat128(buf, pos, voxelBytes.get(), value);
+		}
+	}
+
+	private static class ComplexFloat32Encoder implements RowEncoder<ComplexFloat32Member> {
+
+		private final ComplexFloat32Member value = G.CFLT.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<ComplexFloat32Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putFloat(value.r());
+				buf.putFloat(value.i());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, ComplexFloat32Member value) {
+			int pos = (int) (rowStart + x * 8);
+			buf.putFloat(pos, value.r());
+			buf.putFloat(pos + 4, value.i());
+		}
+	}
+
+	private static class ComplexFloat64Encoder implements RowEncoder<ComplexFloat64Member> {
+
+		private final ComplexFloat64Member value = G.CDBL.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<ComplexFloat64Member> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.putDouble(value.r());
+				buf.putDouble(value.i());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, ComplexFloat64Member value) {
+			int pos = (int) (rowStart + x * 16);
+			buf.putDouble(pos, value.r());
+			buf.putDouble(pos + 8, value.i());
+		}
+	}
+
+	private static class ComplexFloat128Encoder implements RowEncoder<ComplexFloat128Member> {
+
+		private final ComplexFloat128Member value = G.CQUAD.construct();
+
+		private final byte[] bytes = new byte[16];
+
+		private final ByteBuffer words = ByteBuffer.wrap(bytes);
+
+		private final ThreadLocal<ByteBuffer> voxelBytes = ThreadLocal.withInitial(() -> ByteBuffer.wrap(new byte[16]));
+
+		@Override
+		public void encodeRow(IndexedDataSource<ComplexFloat128Member> in, long index, long n, long step, ByteBuffer buf) {
+			boolean swap = buf.order() == ByteOrder.LITTLE_ENDIAN;
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				writeFloat128(buf, swap, bytes, words, value.r());
+				writeFloat128(buf, swap, bytes, words, value.i());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, ComplexFloat128Member value) {
+			int pos = (int) (rowStart + x * 32);
+			ByteBuffer scratch = voxelBytes.get();
+			writeFloat128(buf, pos, scratch, value.r());
+			writeFloat128(buf, pos + 16, scratch, value.i());
+		}
+	}
+
+	private static class RgbEncoder implements RowEncoder<RgbMember> {
+
+		private final RgbMember value = G.RGB.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<RgbMember> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.put((byte) value.r());
+				buf.put((byte) value.g());
+				buf.put((byte) value.b());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, RgbMember value) {
+			int pos = (int) (rowStart + x * 3);
+			buf.put(pos, (byte) value.r());
+			buf.put(pos + 1, (byte) value.g());
+			buf.put(pos + 2, (byte) value.b());
+		}
+	}
+
+	private static class ArgbEncoder implements RowEncoder<ArgbMember> {
+
+		private final ArgbMember value = G.ARGB.construct();
+
+		@Override
+		public void encodeRow(IndexedDataSource<ArgbMember> in, long index, long n, long step, ByteBuffer buf) {
+			for (long i = 0; i < n; i++) {
+				in.get(index, value);
+				buf.put((byte) value.r());
+				buf.put((byte) value.g());
+				buf.put((byte) value.b());
+				buf.put((byte) value.a());
+				index += step;
+			}
+		}
+
+		@Override
+		public void encodeVoxel(ByteBuffer buf, int rowStart, long x, ArgbMember value) {
+			int pos = (int) (rowStart + x * 4);
+			buf.put(pos, (byte) value.r());
+			buf.put(pos + 1, (byte) value.g());
+			buf.put(pos + 2, (byte) value.b());
+			buf.put(pos + 3, (byte) value.a());
+		}
+	}
+
+	// ieee 128 bit floats are stored with the most significant byte first
+	// unless the file is little endian. big endian values are copied in bulk.
+	// little endian values are moved a 64 bit word at a time: the buffer's
+	// byte order reverses each word and the two words trade places. words
+	// wraps the buffer array.
+	
+	private static void writeFloat128(ByteBuffer buf, boolean swapBytes, byte[] buffer, ByteBuffer words, Float128Member val) {
+		val.toByteArray(buffer, 0);
+		if (swapBytes) {
+			buf.putLong(words.getLong(8));
+			buf.putLong(words.getLong(0));
+		}
+		else {
+			buf.put(buffer);
+		}
+	}
+
+	// write the one value at an absolute position in the same way. scratch
+	// wraps a 16 byte array.
+	
+	private static void writeFloat128(ByteBuffer buf, int pos, ByteBuffer scratch, Float128Member val) {
+		boolean swap = buf.order() == ByteOrder.LITTLE_ENDIAN;
+		val.toByteArray(scratch.array(), 0);
+		buf.putLong(swap ? pos + 8 : pos, scratch.getLong(0));
+		buf.putLong(swap ? pos : pos + 8, scratch.getLong(8));
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.nifti.NiftiReadOptions.ScaledPrecision;
+import nom.bdezonia.zorbage.storage.StorageConstruction;
+
+/**
+ * A write only {@link IndexedDataSource} of raw voxel values that applies a
+ * nifti file's scl_slope and scl_inter to each value as it is set and stores
+ * the scaled value in another data source. Decoding through one of these
+ * scales the voxels in the same pass and never stores the raw values.
+ * 
+ * Every thread that sets values gets its own scratch values so the voxels
+ * can be decoded by many threads at once if the target allows it.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class ScaleOnWriteDataSource<T> implements IndexedDataSource<T> {
+
+	private final IndexedDataSource target;
+	
+	private final Allocatable rawType;
+	
+	private final double slope;
+	
+	private final double intercept;
+	
+	private final ScaledPrecision precision;
+	
+	private final ThreadLocal<Scratch> scratch;
+	
+	/**
+	 * 
+	 * @param target The data source the scaled values are stored in
+	 * @param rawType A value of the raw type
+	 * @param slope The nifti scl_slope
+	 * @param intercept The nifti scl_inter
+	 * @param precision The precision of the scaled type
+	 */
+	ScaleOnWriteDataSource(IndexedDataSource target, Allocatable rawType, double slope, double intercept,
+						ScaledPrecision precision)
+	{
+		if (Scaling.of(rawType, slope, intercept, precision) == null)
+			throw new IllegalArgumentException("values of type "+rawType.getClass().getSimpleName()+" are not scaled");
+		this.target = target;
+		this.rawType = rawType;
+		this.slope = slope;
+		this.intercept = intercept;
+		this.precision = precision;
+		this.scratch = ThreadLocal.withInitial(() -> new Scratch(Scaling.of(rawType, slope, intercept, precision)));
+	}
+
+	@Override
+	public void set(long index, T value) {
+		Scratch s = scratch.get();
+		s.scaling.proc.call(value, s.scaledValue);
+		target.set(index, s.scaledValue);
+	}
+
+	@Override
+	public void get(long index, T value) {
+		throw new UnsupportedOperationException("raw values are not kept once they are scaled");
+	}
+
+	@Override
+	public long size() {
+		return target.size();
+	}
+
+	@Override
+	public IndexedDataSource<T> duplicate() {
+		return new ScaleOnWriteDataSource<>(target.duplicate(), rawType, slope, intercept, precision);
+	}
+
+	@Override
+	public StorageConstruction storageType() {
+		return target.storageType();
+	}
+
+	@Override
+	public boolean accessWithOneThread() {
+		return target.accessWithOneThread();
+	}
+	
+	// some scalings hold scratch state so each thread gets its own
+	
+	private static class Scratch {
+		
+		final Scaling scaling;
+		
+		final Object scaledValue;
+		
+		Scratch(Scaling scaling) {
+			this.scaling = scaling;
+			this.scaledValue = scaling.scaledAlg.construct();
+		}
+	}
+}
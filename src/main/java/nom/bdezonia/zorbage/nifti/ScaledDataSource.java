@@ -0,0 +1,138 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.nifti.NiftiReadOptions.ScaledPrecision;
+import nom.bdezonia.zorbage.storage.StorageConstruction;
+
+/**
+ * A read only {@link IndexedDataSource} that applies a nifti file's scl_slope
+ * and scl_inter to the raw values of another data source as they are fetched.
+ * The scaled values are never stored anywhere.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class ScaledDataSource<U> implements IndexedDataSource<U> {
+
+	private final IndexedDataSource raw;
+	
+	private final Allocatable rawType;
+	
+	private final double slope;
+	
+	private final double intercept;
+	
+	private final ScaledPrecision precision;
+	
+	private final Scaling scaling;
+	
+	private final ThreadLocal<Scratch> scratch;
+	
+	/**
+	 * 
+	 * @param raw The data source of raw values
+	 * @param rawType A value of the raw type
+	 * @param slope The nifti scl_slope
+	 * @param intercept The nifti scl_inter
+	 * @param precision The precision of the scaled type
+	 */
+	ScaledDataSource(IndexedDataSource raw, Allocatable rawType, double slope, double intercept,
+						ScaledPrecision precision)
+	{
+		this.raw = raw;
+		this.rawType = rawType;
+		this.slope = slope;
+		this.intercept = intercept;
+		this.precision = precision;
+		this.scaling = Scaling.of(rawType, slope, intercept, precision);
+		if (scaling == null)
+			throw new IllegalArgumentException("values of type "+rawType.getClass().getSimpleName()+" are not scaled");
+		this.scratch = ThreadLocal.withInitial(() -> new Scratch(Scaling.of(rawType, slope, intercept, precision)));
+	}
+
+	/**
+	 * Returns the data source of raw values.
+	 */
+	IndexedDataSource raw() {
+		return raw;
+	}
+
+	/**
+	 * Returns a value of the type the scaled values have.
+	 */
+	Allocatable scaledType() {
+		return (Allocatable) scaling.scaledAlg.construct();
+	}
+
+	@Override
+	public void set(long index, U value) {
+		throw new UnsupportedOperationException("scaled nifti data is read only");
+	}
+
+	@Override
+	public void get(long index, U value) {
+		Scratch s = scratch.get();
+		raw.get(index, s.rawValue);
+		s.scaling.proc.call(s.rawValue, value);
+	}
+
+	@Override
+	public long size() {
+		return raw.size();
+	}
+
+	@Override
+	public IndexedDataSource<U> duplicate() {
+		return new ScaledDataSource<>(raw.duplicate(), rawType, slope, intercept, precision);
+	}
+
+	@Override
+	public StorageConstruction storageType() {
+		return raw.storageType();
+	}
+
+	@Override
+	public boolean accessWithOneThread() {
+		return raw.accessWithOneThread();
+	}
+	
+	// the raw value and some scalings hold scratch state so each thread gets
+	// its own
+	
+	private static class Scratch {
+		
+		final Scaling scaling;
+		
+		final Object rawValue;
+		
+		Scratch(Scaling scaling) {
+			this.scaling = scaling;
+			this.rawValue = scaling.rawAlg.construct();
+		}
+	}
+}
@@ -0,0 +1,501 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import nom.bdezonia.zorbage.algebra.Algebra;
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.nifti.NiftiReadOptions.ScaledPrecision;
+import nom.bdezonia.zorbage.procedure.Procedure2;
+import nom.bdezonia.zorbage.type.color.ArgbMember;
+import nom.bdezonia.zorbage.type.color.RgbMember;
+import nom.bdezonia.zorbage.type.complex.float128.ComplexFloat128Member;
+import nom.bdezonia.zorbage.type.complex.float32.ComplexFloat32Member;
+import nom.bdezonia.zorbage.type.complex.float64.ComplexFloat64Member;
+import nom.bdezonia.zorbage.type.complex.highprec.ComplexHighPrecisionMember;
+import nom.bdezonia.zorbage.type.integer.int1.UnsignedInt1Member;
+import nom.bdezonia.zorbage.type.integer.int16.SignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int16.UnsignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int32.SignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int32.UnsignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int64.SignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int64.UnsignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int8.SignedInt8Member;
+import nom.bdezonia.zorbage.type.integer.int8.UnsignedInt8Member;
+import nom.bdezonia.zorbage.type.real.float128.Float128Member;
+import nom.bdezonia.zorbage.type.real.float32.Float32Member;
+import nom.bdezonia.zorbage.type.real.float64.Float64Member;
+import nom.bdezonia.zorbage.type.real.highprec.HighPrecisionMember;
+
+/**
+ * The procedure that applies a nifti file's scl_slope and scl_inter to raw
+ * voxel values along with the algebras of the raw and the scaled values.
+ * Integer and float32 data is scaled into doubles and the wider types are
+ * scaled in their own type. 64 bit integer data scaled by a slope or
+ * intercept that is not a whole number is scaled into doubles too. Whole
+ * results are exact: longs when every value is in range, float128s when
+ * they fit in 113 bits and high precision values beyond that. Integer and
+ * float32 data can instead be scaled into float32 values.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class Scaling {
+
+	final Algebra rawAlg;
+	
+	final Algebra scaledAlg;
+	
+	final Procedure2 proc;
+	
+	private Scaling(Algebra rawAlg, Algebra scaledAlg, Procedure2 proc) {
+		this.rawAlg = rawAlg;
+		this.scaledAlg = scaledAlg;
+		this.proc = proc;
+	}
+
+	/**
+	 * Make the scaling for raw values of the given type that scales them into
+	 * a type of the given precision. Some procedures hold scratch values so
+	 * each user should make its own scaling.
+	 * 
+	 * @param type A value of the raw type
+	 * @param slope The nifti scl_slope
+	 * @param intercept The nifti scl_inter
+	 * @param precision The precision of the scaled type
+	 * @return The scaling or null if values of the type are not scaled
+	 */
+	static Scaling of(Allocatable type, double slope, double intercept, ScaledPrecision precision)
+	{
+		if (type instanceof UnsignedInt64Member)
+			return ofLongs(true, slope, intercept, precision);
+		if (type instanceof SignedInt64Member)
+			return ofLongs(false, slope, intercept, precision);
+		Scaling scaling = of(type, slope, intercept);
+		if (scaling == null)
+			return null;
+		boolean narrow;
+		switch (precision) {
+		case FLOAT:
+			narrow = scaling.scaledAlg != scaling.rawAlg;
+			break;
+		case NARROWEST_EXACT:
+			narrow = type instanceof UnsignedInt1Member ||
+						type instanceof UnsignedInt8Member ||
+						type instanceof SignedInt8Member ||
+						type instanceof UnsignedInt16Member ||
+						type instanceof SignedInt16Member ||
+						type instanceof Float32Member ||
+						type instanceof ComplexFloat32Member;
+			break;
+		default:
+			narrow = false;
+			break;
+		}
+		return narrow ? toFloat(scaling) : scaling;
+	}
+
+	/**
+	 * Make the scaling for raw values of the given type. Some procedures hold
+	 * scratch values so each user should make its own scaling.
+	 * 
+	 * @param type A value of the raw type
+	 * @param slope The nifti scl_slope
+	 * @param intercept The nifti scl_inter
+	 * @return The scaling or null if values of the type are not scaled
+	 */
+	static Scaling of(Allocatable type, double slope, double intercept)
+	{
+		Algebra rawAlg;
+		Algebra scaledAlg;
+		Procedure2 proc;
+		if (type instanceof UnsignedInt1Member) {
+			rawAlg = G.UINT1;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<UnsignedInt1Member,Float64Member>() {
+				@Override
+				public void call(UnsignedInt1Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof UnsignedInt8Member) {
+			rawAlg = G.UINT8;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<UnsignedInt8Member,Float64Member>() {
+				@Override
+				public void call(UnsignedInt8Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof SignedInt8Member) {
+			rawAlg = G.INT8;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<SignedInt8Member,Float64Member>() {
+				@Override
+				public void call(SignedInt8Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof UnsignedInt16Member) {
+			rawAlg = G.UINT16;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<UnsignedInt16Member,Float64Member>() {
+				@Override
+				public void call(UnsignedInt16Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof SignedInt16Member) {
+			rawAlg = G.INT16;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<SignedInt16Member,Float64Member>() {
+				@Override
+				public void call(SignedInt16Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof UnsignedInt32Member) {
+			rawAlg = G.UINT32;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<UnsignedInt32Member,Float64Member>() {
+				@Override
+				public void call(UnsignedInt32Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof SignedInt32Member) {
+			rawAlg = G.INT32;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<SignedInt32Member,Float64Member>() {
+				@Override
+				public void call(SignedInt32Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof UnsignedInt64Member) {
+			return ofLongs(true, slope, intercept, ScaledPrecision.DOUBLE);
+		}
+		else if (type instanceof SignedInt64Member) {
+			return ofLongs(false, slope, intercept, ScaledPrecision.DOUBLE);
+		}
+		else if (type instanceof Float32Member) {
+			rawAlg = G.FLT;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<Float32Member,Float64Member>() {
+				@Override
+				public void call(Float32Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof ComplexFloat32Member) {
+			rawAlg = G.CFLT;
+			scaledAlg = G.CDBL;
+			proc = new Procedure2<ComplexFloat32Member,ComplexFloat64Member>() {
+				@Override
+				public void call(ComplexFloat32Member a, ComplexFloat64Member b) {
+					b.setR(a.r() * slope + intercept);
+					b.setI(a.i() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof Float64Member) {
+			rawAlg = G.DBL;
+			scaledAlg = G.DBL;
+			proc = new Procedure2<Float64Member,Float64Member>() {
+				@Override
+				public void call(Float64Member a, Float64Member b) {
+					b.setV(a.v() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof ComplexFloat64Member) {
+			rawAlg = G.CDBL;
+			scaledAlg = G.CDBL;
+			proc = new Procedure2<ComplexFloat64Member,ComplexFloat64Member>() {
+				@Override
+				public void call(ComplexFloat64Member a, ComplexFloat64Member b) {
+					b.setR(a.r() * slope + intercept);
+					b.setI(a.i() * slope + intercept);
+				}
+			};
+		}
+		else if (type instanceof Float128Member) {
+			rawAlg = G.QUAD;
+			scaledAlg = G.QUAD;
+			Float128Member scaled = G.QUAD.construct();
+			Float128Member translation = G.QUAD.construct();
+			proc = new Procedure2<Float128Member,Float128Member>() {
+				@Override
+				public void call(Float128Member a, Float128Member b) {
+					G.QUAD.scaleByDouble().call(slope, a, scaled);
+					translation.setV(BigDecimal.valueOf(intercept));
+					G.QUAD.add().call(scaled, translation, b);
+				}
+			};
+		}
+		else if (type instanceof ComplexFloat128Member) {
+			rawAlg = G.CQUAD;
+			scaledAlg = G.CQUAD;
+			ComplexFloat128Member scaled = G.CQUAD.construct();
+			ComplexFloat128Member translation = G.CQUAD.construct();
+			proc = new Procedure2<ComplexFloat128Member,ComplexFloat128Member>() {
+				@Override
+				public void call(ComplexFloat128Member a, ComplexFloat128Member b) {
+					G.CQUAD.scaleByDouble().call(slope, a, scaled);
+					translation.setR(BigDecimal.valueOf(intercept));
+					G.CQUAD.add().call(scaled, translation, b);
+				}
+			};
+		}
+		else if (type instanceof HighPrecisionMember) {
+			rawAlg = G.HP;
+			scaledAlg = G.HP;
+			proc = new Procedure2<HighPrecisionMember,HighPrecisionMember>() {
+				@Override
+				public void call(HighPrecisionMember a, HighPrecisionMember b) {
+					BigDecimal val = a.v().multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
+					b.setV(val);
+				}
+			};
+		}
+		else if (type instanceof ComplexHighPrecisionMember) {
+			rawAlg = G.CHP;
+			scaledAlg = G.CHP;
+			proc = new Procedure2<ComplexHighPrecisionMember,ComplexHighPrecisionMember>() {
+				@Override
+				public void call(ComplexHighPrecisionMember a, ComplexHighPrecisionMember b) {
+					BigDecimal r = a.r().multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
+					BigDecimal i = a.i().multiply(BigDecimal.valueOf(slope)).add(BigDecimal.valueOf(intercept)); 
+					b.setR(r);
+					b.setI(i);
+				}
+			};
+		}
+		else if (type instanceof RgbMember) {
+			// do not scale color data
+			return null;
+		}
+		else if (type instanceof ArgbMember) {
+			// do not scale color data
+			return null;
+		}
+		else
+			throw new IllegalArgumentException("Unknown data type! passed to Scaling.of() method");
+		return new Scaling(rawAlg, scaledAlg, proc);
+	}
+
+	// 64 bit integers are scaled with primitive arithmetic into the narrowest
+	// type the precision allows. a slope or intercept that is not a whole
+	// number makes results that no binary type holds exactly, so they are
+	// computed in doubles (or floats). whole results stay exact: they are
+	// kept in longs when every raw value scales into a long, in float128s
+	// built straight from their 128 bit integer when they need at most
+	// float128's 113 bits and only otherwise in high precision values. the
+	// raw value is always read as a long and never widened to a BigInteger.
+	
+	private static Scaling ofLongs(boolean unsigned, double slope, double intercept, ScaledPrecision precision)
+	{
+		Algebra rawAlg = unsigned ? G.UINT64 : G.INT64;
+		long[] raw = new long[1];
+		if (precision == ScaledPrecision.FLOAT) {
+			Procedure2<Object,Float32Member> proc = new Procedure2<Object,Float32Member>() {
+				@Override
+				public void call(Object a, Float32Member b) {
+					double v = unsigned ? unsignedToDouble(rawLong(a, raw)) : rawLong(a, raw);
+					b.setV((float) (v * slope + intercept));
+				}
+			};
+			return new Scaling(rawAlg, G.FLT, proc);
+		}
+		if (!isWhole(slope) || !isWhole(intercept)) {
+			Procedure2<Object,Float64Member> proc = new Procedure2<Object,Float64Member>() {
+				@Override
+				public void call(Object a, Float64Member b) {
+					double v = unsigned ? unsignedToDouble(rawLong(a, raw)) : rawLong(a, raw);
+					b.setV(v * slope + intercept);
+				}
+			};
+			return new Scaling(rawAlg, G.DBL, proc);
+		}
+		BigInteger s = BigDecimal.valueOf(slope).toBigIntegerExact();
+		BigInteger i = BigDecimal.valueOf(intercept).toBigIntegerExact();
+		BigInteger min = unsigned ? BigInteger.ZERO : BigInteger.valueOf(Long.MIN_VALUE);
+		BigInteger max = unsigned ? BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE) : BigInteger.valueOf(Long.MAX_VALUE);
+		BigInteger lo = min.multiply(s).add(i);
+		BigInteger hi = max.multiply(s).add(i);
+		if (lo.bitLength() < 64 && hi.bitLength() < 64) {
+			// the results fit in longs so the wrapped products and sums are exact
+			long ls = s.longValue();
+			long li = i.longValue();
+			Procedure2<Object,SignedInt64Member> proc = new Procedure2<Object,SignedInt64Member>() {
+				@Override
+				public void call(Object a, SignedInt64Member b) {
+					b.setV(rawLong(a, raw) * ls + li);
+				}
+			};
+			return new Scaling(rawAlg, G.INT64, proc);
+		}
+		if (lo.abs().bitLength() <= 113 && hi.abs().bitLength() <= 113 &&
+				s.bitLength() < 64 && i.bitLength() < 64)
+		{
+			// the product of a raw value and a long slope fits in 128 bits
+			// and so does the sum with the intercept
+			long ls = s.longValue();
+			long li = i.longValue();
+			byte[] bytes = new byte[16];
+			Procedure2<Object,Float128Member> proc = new Procedure2<Object,Float128Member>() {
+				@Override
+				public void call(Object a, Float128Member b) {
+					long v = rawLong(a, raw);
+					// the 128 bit product v * ls
+					long ph = Math.multiplyHigh(v, ls);
+					if (unsigned && v < 0)
+						ph += ls;
+					long pl = v * ls;
+					// plus the sign extended intercept
+					long rl = pl + li;
+					long rh = ph + (li >> 63) + (Long.compareUnsigned(rl, pl) < 0 ? 1 : 0);
+					float128Bytes(rh, rl, bytes);
+					b.fromByteArray(bytes, 0);
+				}
+			};
+			return new Scaling(rawAlg, G.QUAD, proc);
+		}
+		BigDecimal bigSlope = new BigDecimal(s);
+		BigDecimal bigIntercept = new BigDecimal(i);
+		Procedure2<Object,HighPrecisionMember> proc = new Procedure2<Object,HighPrecisionMember>() {
+			@Override
+			public void call(Object a, HighPrecisionMember b) {
+				long v = rawLong(a, raw);
+				BigInteger big = BigInteger.valueOf(v);
+				if (unsigned && v < 0)
+					big = big.add(BigInteger.ONE.shiftLeft(64));
+				b.setV(new BigDecimal(big).multiply(bigSlope).add(bigIntercept));
+			}
+		};
+		return new Scaling(rawAlg, G.HP, proc);
+	}
+	
+	// encode the 128 bit two's complement integer hi:lo, which has at most 113
+	// significant bits, as the big endian bytes of an IEEE binary128 value.
+	// it is exact so there is no rounding.
+	
+	private static void float128Bytes(long hi, long lo, byte[] bytes) {
+		long sign = hi & Long.MIN_VALUE;
+		if (sign != 0) {
+			// negate the 128 bit value
+			lo = -lo;
+			hi = ~hi + (lo == 0 ? 1 : 0);
+		}
+		long word0 = 0;
+		long word1 = 0;
+		if (hi != 0 || lo != 0) {
+			// the position of the leading one bit
+			int p = (hi != 0) ? 127 - Long.numberOfLeadingZeros(hi) : 63 - Long.numberOfLeadingZeros(lo);
+			// move it to bit 112 where the implicit bit of a binary128 sits
+			int shift = 112 - p;
+			if (shift >= 64) {
+				hi = lo << (shift - 64);
+				lo = 0;
+			}
+			else if (shift > 0) {
+				hi = (hi << shift) | (lo >>> (64 - shift));
+				lo = lo << shift;
+			}
+			word0 = ((long) (p + 16383) << 48) | (hi & 0xffffffffffffL);
+			word1 = lo;
+		}
+		word0 |= sign;
+		for (int k = 0; k < 8; k++) {
+			bytes[k] = (byte) (word0 >>> (56 - 8 * k));
+			bytes[k + 8] = (byte) (word1 >>> (56 - 8 * k));
+		}
+	}
+	
+	// the raw bits of a 64 bit integer without making a BigInteger
+	
+	private static long rawLong(Object a, long[] raw) {
+		if (a instanceof SignedInt64Member)
+			return ((SignedInt64Member) a).v();
+		((UnsignedInt64Member) a).toLongArray(raw, 0);
+		return raw[0];
+	}
+	
+	// the nearest double to an unsigned long. halving first keeps the low bit
+	// so the one rounding that happens is the correct one.
+	
+	private static double unsignedToDouble(long v) {
+		if (v >= 0)
+			return v;
+		return ((double) ((v >>> 1) | (v & 1))) * 2;
+	}
+	
+	private static boolean isWhole(double d) {
+		return !Double.isInfinite(d) && d == Math.rint(d);
+	}
+
+	// scale as the wide scaling does and round the result to a float
+	
+	private static Scaling toFloat(Scaling wide)
+	{
+		Procedure2 proc;
+		if (wide.scaledAlg == G.DBL) {
+			Float64Member tmp = G.DBL.construct();
+			proc = new Procedure2<Object,Float32Member>() {
+				@Override
+				public void call(Object a, Float32Member b) {
+					wide.proc.call(a, tmp);
+					b.setV((float) tmp.v());
+				}
+			};
+			return new Scaling(wide.rawAlg, G.FLT, proc);
+		}
+		else if (wide.scaledAlg == G.CDBL) {
+			ComplexFloat64Member tmp = G.CDBL.construct();
+			proc = new Procedure2<Object,ComplexFloat32Member>() {
+				@Override
+				public void call(Object a, ComplexFloat32Member b) {
+					wide.proc.call(a, tmp);
+					b.setR((float) tmp.r());
+					b.setI((float) tmp.i());
+				}
+			};
+			return new Scaling(wide.rawAlg, G.CFLT, proc);
+		}
+		// already scaled in its own type
+		return wide;
+	}
+}
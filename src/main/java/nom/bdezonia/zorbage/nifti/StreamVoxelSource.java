@@ -0,0 +1,76 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link VoxelSource} that pulls rows of voxels out of a stream.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+class StreamVoxelSource implements VoxelSource {
+
+	private final DataInputStream str;
+	
+	private final ByteOrder order;
+	
+	private ByteBuffer buffer;
+	
+	/**
+	 * 
+	 * @param str The stream positioned at the first voxel
+	 * @param order The byte order of the voxel data
+	 */
+	StreamVoxelSource(DataInputStream str, ByteOrder order) {
+		this.str = str;
+		this.order = order;
+		this.buffer = ByteBuffer.allocate(0).order(order);
+	}
+	
+	@Override
+	public ByteBuffer nextRow(int numBytes) throws IOException {
+		if (buffer.capacity() < numBytes) {
+			buffer = ByteBuffer.allocate(numBytes).order(order);
+		}
+		str.readFully(buffer.array(), 0, numBytes);
+		buffer.clear();
+		buffer.limit(numBytes);
+		return buffer;
+	}
+
+	@Override
+	public void skip(long numBytes) throws IOException {
+		NiftiFiles.skipFully(str, numBytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		str.close();
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of the raw voxel bytes of a nifti file. Voxels are handed out one
+ * x row at a time in the order they are stored in the file.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+interface VoxelSource extends Closeable {
+
+	/**
+	 * Returns a buffer whose next numBytes bytes are the next row of voxel
+	 * data. The buffer's byte order matches the byte order of the file. The
+	 * contents of the buffer are only valid until the next call.
+	 * 
+	 * @param numBytes The number of bytes in one row of voxels
+	 * @return
+	 * @throws IOException
+	 */
+	ByteBuffer nextRow(int numBytes) throws IOException;
+
+	/**
+	 * Skip over bytes of voxel data that are not needed.
+	 * 
+	 * @param numBytes The number of bytes to skip
+	 * @throws IOException
+	 */
+	void skip(long numBytes) throws IOException;
+}
@@ -0,0 +1,362 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import nom.bdezonia.zorbage.algebra.Allocatable;
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.data.DimensionedDataSource;
+import nom.bdezonia.zorbage.data.DimensionedStorage;
+import nom.bdezonia.zorbage.datasource.IndexedDataSource;
+import nom.bdezonia.zorbage.type.color.ArgbMember;
+import nom.bdezonia.zorbage.type.color.RgbMember;
+import nom.bdezonia.zorbage.type.complex.float128.ComplexFloat128Member;
+import nom.bdezonia.zorbage.type.complex.float32.ComplexFloat32Member;
+import nom.bdezonia.zorbage.type.complex.float64.ComplexFloat64Member;
+import nom.bdezonia.zorbage.type.integer.int1.UnsignedInt1Member;
+import nom.bdezonia.zorbage.type.integer.int16.SignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int16.UnsignedInt16Member;
+import nom.bdezonia.zorbage.type.integer.int32.SignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int32.UnsignedInt32Member;
+import nom.bdezonia.zorbage.type.integer.int64.SignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int64.UnsignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int8.SignedInt8Member;
+import nom.bdezonia.zorbage.type.integer.int8.UnsignedInt8Member;
+import nom.bdezonia.zorbage.type.real.float128.Float128Member;
+import nom.bdezonia.zorbage.type.real.float32.Float32Member;
+import nom.bdezonia.zorbage.type.real.float64.Float64Member;
+
+/**
+ * Reads the sample files and synthetic files of every data type on many
+ * threads at once and checks that each read matches a single threaded read.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class TestConcurrentReads {
+
+	private static final int THREADS = 16;
+	
+	private static final int READS_PER_THREAD = 40;
+	
+	@Test
+	public void concurrentReadsMatchSingleThreadedReads() throws Exception {
+		
+		Path dir = Files.createTempDirectory("zorbage-nifti");
+		
+		try {
+			
+			List<URI> files = new ArrayList<>();
+			
+			File[] samples = new File("data").listFiles((d, name) -> name.endsWith(".nii"));
+			
+			if (samples != null) {
+				for (File sample : samples) {
+					files.add(sample.toURI());
+				}
+			}
+			
+			files.addAll(writeSyntheticFiles(dir));
+			
+			Map<URI, List<String>> expected = new HashMap<>();
+			
+			for (URI file : files) {
+				expected.put(file, values(file, new NiftiReadOptions()));
+			}
+			
+			ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+			
+			try {
+				
+				List<Future<?>> results = new ArrayList<>();
+				
+				for (int t = 0; t < THREADS; t++) {
+					
+					Random rng = new Random(t);
+					
+					results.add(pool.submit(() -> {
+						for (int i = 0; i < READS_PER_THREAD; i++) {
+							URI file = files.get(rng.nextInt(files.size()));
+							NiftiReadOptions options = new NiftiReadOptions();
+							options.setMemoryMapping(rng.nextBoolean());
+							options.setParallelDecoding(rng.nextBoolean());
+							assertEquals(file.toString(), expected.get(file), values(file, options));
+						}
+						return null;
+					}));
+				}
+				
+				for (Future<?> result : results) {
+					result.get();
+				}
+			}
+			finally {
+				pool.shutdown();
+			}
+		}
+		finally {
+			try (Stream<Path> paths = Files.walk(dir)) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+	
+	@Test
+	public void evictingOffHeapDataDoesNotDisturbItsReaders() throws Exception {
+		readCachedFilesWhileEvicting(false);
+	}
+	
+	@Test
+	public void evictingLazilyScaledDataDoesNotDisturbItsReaders() throws Exception {
+		readCachedFilesWhileEvicting(true);
+	}
+	
+	// many threads read off heap int16 files through a cache with room for
+	// one of them, so nearly every get() evicts a file others are reading.
+	// scaled files have a slope of 2 and an intercept of 0.5.
+	
+	private static void readCachedFilesWhileEvicting(boolean scaled) throws Exception {
+		
+		Path dir = Files.createTempDirectory("zorbage-nifti");
+		
+		try {
+			
+			List<URI> files = new ArrayList<>();
+			
+			for (int f = 0; f < 4; f++) {
+				DimensionedDataSource data = DimensionedStorage.allocate(G.INT16.construct(), new long[] {64, 64, 8});
+				IndexedDataSource storage = data.rawData();
+				SignedInt16Member value = G.INT16.construct();
+				for (long i = 0; i < storage.size(); i++) {
+					value.setV((short) (i * (f + 1)));
+					storage.set(i, value);
+				}
+				NiftiWriteOptions writeOptions = new NiftiWriteOptions();
+				writeOptions.setVersion(1);
+				writeOptions.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+				Path path = dir.resolve("cached" + f + ".nii");
+				Nifti.write(data, G.INT16.construct(), path, writeOptions);
+				if (scaled) {
+					// scl_slope and scl_inter of a nifti 1 header
+					ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+					buf.putFloat(2).putFloat(0.5f).flip();
+					try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+						channel.write(buf, 112);
+					}
+				}
+				files.add(path.toUri());
+			}
+			
+			NiftiReadOptions options = new NiftiReadOptions();
+			options.setOffHeapStorage(true);
+			options.setOffHeapDirectory(dir);
+			options.setLazyScaling(scaled);
+			
+			// room for one file only so every get() of another file evicts
+			
+			NiftiDataCache cache = new NiftiDataCache(64 * 64 * 8 * 2 + 1024, options);
+			
+			ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+			
+			try {
+				
+				List<Future<?>> results = new ArrayList<>();
+				
+				for (int t = 0; t < THREADS; t++) {
+					
+					int f = t % files.size();
+					
+					results.add(pool.submit(() -> {
+						for (int i = 0; i < 10; i++) {
+							if (scaled) {
+								DimensionedDataSource<Float64Member> data = cache.get(files.get(f)).dbls.get(0);
+								IndexedDataSource<Float64Member> storage = data.rawData();
+								Float64Member value = G.DBL.construct();
+								for (long j = 0; j < storage.size(); j++) {
+									storage.get(j, value);
+									assertEquals((short) (j * (f + 1)) * 2.0 + 0.5, value.v(), 0);
+								}
+							}
+							else {
+								DimensionedDataSource<SignedInt16Member> data = cache.get(files.get(f)).int16s.get(0);
+								IndexedDataSource<SignedInt16Member> storage = data.rawData();
+								SignedInt16Member value = G.INT16.construct();
+								for (long j = 0; j < storage.size(); j++) {
+									storage.get(j, value);
+									assertEquals((short) (j * (f + 1)), value.v());
+								}
+							}
+						}
+						return null;
+					}));
+				}
+				
+				for (Future<?> result : results) {
+					result.get();
+				}
+			}
+			finally {
+				pool.shutdown();
+			}
+			
+			assertEquals(1, cache.size());
+		}
+		finally {
+			try (Stream<Path> paths = Files.walk(dir)) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+	
+	// the dims and the text of every value of a read of the file
+	
+	private static List<String> values(URI file, NiftiReadOptions options) throws IOException {
+		NiftiDataset dataset = Nifti.decode(file, Nifti.readHeader(file, options), options, true);
+		DimensionedDataSource data = dataset.data();
+		List<String> values = new ArrayList<>();
+		for (int i = 0; i < data.numDimensions(); i++) {
+			values.add("dim " + data.dimension(i));
+		}
+		IndexedDataSource storage = data.rawData();
+		Allocatable value = (Allocatable) dataset.type().allocate();
+		for (long i = 0; i < storage.size(); i++) {
+			storage.get(i, value);
+			values.add(value.toString());
+		}
+		return values;
+	}
+	
+	// write a small volume of every data type the writer supports in both
+	// byte orders alternating between nifti 1 and nifti 2 files
+	
+	private static List<URI> writeSyntheticFiles(Path dir) throws IOException {
+		Allocatable[] types = {
+				G.UINT1.construct(), G.UINT8.construct(), G.INT8.construct(),
+				G.UINT16.construct(), G.INT16.construct(), G.UINT32.construct(),
+				G.INT32.construct(), G.UINT64.construct(), G.INT64.construct(),
+				G.FLT.construct(), G.DBL.construct(), G.QUAD.construct(),
+				G.CFLT.construct(), G.CDBL.construct(), G.CQUAD.construct(),
+				G.RGB.construct(), G.ARGB.construct()
+		};
+		List<URI> files = new ArrayList<>();
+		for (Allocatable type : types) {
+			for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+				DimensionedDataSource data = DimensionedStorage.allocate(type, new long[] {13, 5, 3});
+				IndexedDataSource storage = data.rawData();
+				Allocatable value = (Allocatable) type.allocate();
+				Random rng = new Random(files.size());
+				for (long i = 0; i < storage.size(); i++) {
+					fill(value, rng);
+					storage.set(i, value);
+				}
+				NiftiWriteOptions options = new NiftiWriteOptions();
+				options.setVersion(files.size() % 2 == 0 ? 1 : 2);
+				options.setByteOrder(order);
+				options.setSpacings(1.5, 2, 3);
+				Path path = dir.resolve("type" + RowEncoders.dataType(type) + "_" + order + ".nii");
+				Nifti.write(data, type, path, options);
+				files.add(path.toUri());
+			}
+		}
+		return files;
+	}
+	
+	private static void fill(Allocatable value, Random rng) {
+		if (value instanceof UnsignedInt1Member)
+			((UnsignedInt1Member) value).setV(rng.nextInt(2));
+		else if (value instanceof UnsignedInt8Member)
+			((UnsignedInt8Member) value).setV((byte) rng.nextInt());
+		else if (value instanceof SignedInt8Member)
+			((SignedInt8Member) value).setV((byte) rng.nextInt());
+		else if (value instanceof UnsignedInt16Member)
+			((UnsignedInt16Member) value).setV((short) rng.nextInt());
+		else if (value instanceof SignedInt16Member)
+			((SignedInt16Member) value).setV((short) rng.nextInt());
+		else if (value instanceof UnsignedInt32Member)
+			((UnsignedInt32Member) value).setV(rng.nextInt() & 0xffffffffL);
+		else if (value instanceof SignedInt32Member)
+			((SignedInt32Member) value).setV(rng.nextInt());
+		else if (value instanceof UnsignedInt64Member)
+			((UnsignedInt64Member) value).setV(new BigInteger(64, rng));
+		else if (value instanceof SignedInt64Member)
+			((SignedInt64Member) value).setV(rng.nextLong());
+		else if (value instanceof Float32Member)
+			((Float32Member) value).setV(rng.nextFloat() - 0.5f);
+		else if (value instanceof Float64Member)
+			((Float64Member) value).setV(rng.nextGaussian());
+		else if (value instanceof Float128Member)
+			((Float128Member) value).setV(BigDecimal.valueOf(rng.nextGaussian()));
+		else if (value instanceof ComplexFloat32Member) {
+			((ComplexFloat32Member) value).setR(rng.nextFloat());
+			((ComplexFloat32Member) value).setI(-rng.nextFloat());
+		}
+		else if (value instanceof ComplexFloat64Member) {
+			((ComplexFloat64Member) value).setR(rng.nextGaussian());
+			((ComplexFloat64Member) value).setI(rng.nextGaussian());
+		}
+		else if (value instanceof ComplexFloat128Member) {
+			((ComplexFloat128Member) value).setR(BigDecimal.valueOf(rng.nextGaussian()));
+			((ComplexFloat128Member) value).setI(BigDecimal.valueOf(rng.nextGaussian()));
+		}
+		else if (value instanceof RgbMember) {
+			((RgbMember) value).setR(rng.nextInt(256));
+			((RgbMember) value).setG(rng.nextInt(256));
+			((RgbMember) value).setB(rng.nextInt(256));
+		}
+		else if (value instanceof ArgbMember) {
+			((ArgbMember) value).setA(rng.nextInt(256));
+			((ArgbMember) value).setR(rng.nextInt(256));
+			((ArgbMember) value).setG(rng.nextInt(256));
+			((ArgbMember) value).setB(rng.nextInt(256));
+		}
+		else
+			throw new IllegalArgumentException("no values for type "+value.getClass().getSimpleName());
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * zorbage-nifti: code for reading nifti data files into zorbage structures for further processing<
+ *
+ * Copyright (C) 2021-2022 Barry DeZonia
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package nom.bdezonia.zorbage.nifti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.nifti.NiftiReadOptions.ScaledPrecision;
+import nom.bdezonia.zorbage.type.integer.int64.SignedInt64Member;
+import nom.bdezonia.zorbage.type.integer.int64.UnsignedInt64Member;
+import nom.bdezonia.zorbage.type.real.float128.Float128Member;
+import nom.bdezonia.zorbage.type.real.float32.Float32Member;
+import nom.bdezonia.zorbage.type.real.float64.Float64Member;
+import nom.bdezonia.zorbage.type.real.highprec.HighPrecisionMember;
+
+/**
+ * Checks the type 64 bit integers are scaled into and the scaled values of
+ * signed and unsigned raw values at the ends of their ranges.
+ * 
+ * @author Barry DeZonia
+ *
+ */
+@SuppressWarnings("unchecked")
+public class TestScaling {
+
+	private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+	
+	@Test
+	public void wholeScalingsInRangeStayLongs() {
+		
+		Scaling scaling = Scaling.of(G.INT64.construct(), 1, 0, ScaledPrecision.DOUBLE);
+		assertSame(G.INT64, scaling.scaledAlg);
+		assertEquals(Long.MAX_VALUE, signed(scaling, Long.MAX_VALUE).v());
+		assertEquals(Long.MIN_VALUE, signed(scaling, Long.MIN_VALUE).v());
+		
+		// uint64 values shifted down by 2^63 fill the range of a long
+		
+		scaling = Scaling.of(G.UINT64.construct(), 1, -0x1p63, ScaledPrecision.NARROWEST_EXACT);
+		assertSame(G.INT64, scaling.scaledAlg);
+		assertEquals(Long.MAX_VALUE, unsigned(scaling, -1L).v());
+		assertEquals(Long.MIN_VALUE, unsigned(scaling, 0).v());
+		assertEquals(0, unsigned(scaling, Long.MIN_VALUE).v());
+	}
+	
+	@Test
+	public void wholeScalingsOutOfRangeBecomeExactFloat128s() {
+		
+		Scaling scaling = Scaling.of(G.INT64.construct(), 2, 1, ScaledPrecision.DOUBLE);
+		assertSame(G.QUAD, scaling.scaledAlg);
+		assertEquals(0, new BigDecimal(TWO_64.subtract(BigInteger.ONE)).compareTo(quad(scaling, Long.MAX_VALUE)));
+		assertEquals(0, new BigDecimal(TWO_64.negate().add(BigInteger.ONE)).compareTo(quad(scaling, Long.MIN_VALUE)));
+		assertEquals(0, BigDecimal.ONE.compareTo(quad(scaling, 0)));
+		assertEquals(0, BigDecimal.valueOf(-1).compareTo(quad(scaling, -1)));
+		
+		Scaling unsignedScaling = Scaling.of(G.UINT64.construct(), -3, 5, ScaledPrecision.DOUBLE);
+		assertSame(G.QUAD, unsignedScaling.scaledAlg);
+		BigInteger max = TWO_64.subtract(BigInteger.ONE);
+		assertEquals(0, new BigDecimal(max.multiply(BigInteger.valueOf(-3)).add(BigInteger.valueOf(5)))
+							.compareTo(quadUnsigned(unsignedScaling, -1L)));
+		assertEquals(0, new BigDecimal(BigInteger.ONE.shiftLeft(63).multiply(BigInteger.valueOf(-3)).add(BigInteger.valueOf(5)))
+							.compareTo(quadUnsigned(unsignedScaling, Long.MIN_VALUE)));
+	}
+	
+	@Test
+	public void wholeScalingsBeyondFloat128AreHighPrecision() {
+		
+		Scaling scaling = Scaling.of(G.UINT64.construct(), 0x1p60, 0, ScaledPrecision.DOUBLE);
+		assertSame(G.HP, scaling.scaledAlg);
+		UnsignedInt64Member raw = G.UINT64.construct();
+		raw.setV(-1L);
+		HighPrecisionMember out = G.HP.construct();
+		scaling.proc.call(raw, out);
+		assertEquals(0, new BigDecimal(TWO_64.subtract(BigInteger.ONE).shiftLeft(60)).compareTo(out.v()));
+	}
+	
+	@Test
+	public void fractionalScalingsAreDoubles() {
+		
+		Scaling scaling = Scaling.of(G.INT64.construct(), 0.5, 0.25, ScaledPrecision.DOUBLE);
+		assertSame(G.DBL, scaling.scaledAlg);
+		SignedInt64Member raw = G.INT64.construct();
+		Float64Member out = G.DBL.construct();
+		raw.setV(Long.MAX_VALUE);
+		scaling.proc.call(raw, out);
+		assertEquals(0x1p62 + 0.25, out.v(), 0);
+		raw.setV(Long.MIN_VALUE);
+		scaling.proc.call(raw, out);
+		assertEquals(-0x1p62 + 0.25, out.v(), 0);
+		
+		scaling = Scaling.of(G.UINT64.construct(), 0.5, 0, ScaledPrecision.NARROWEST_EXACT);
+		assertSame(G.DBL, scaling.scaledAlg);
+		UnsignedInt64Member uraw = G.UINT64.construct();
+		uraw.setV(-1L);
+		scaling.proc.call(uraw, out);
+		assertEquals(0x1p63, out.v(), 0);
+		uraw.setV(Long.MIN_VALUE);
+		scaling.proc.call(uraw, out);
+		assertEquals(0x1p62, out.v(), 0);
+	}
+	
+	@Test
+	public void floatPrecisionScalesIntoFloats() {
+		
+		Scaling scaling = Scaling.of(G.UINT64.construct(), 2, 0, ScaledPrecision.FLOAT);
+		assertSame(G.FLT, scaling.scaledAlg);
+		UnsignedInt64Member raw = G.UINT64.construct();
+		raw.setV(-1L);
+		Float32Member out = G.FLT.construct();
+		scaling.proc.call(raw, out);
+		assertEquals(0x1p65f, out.v(), 0);
+	}
+	
+	private static SignedInt64Member signed(Scaling scaling, long v) {
+		Object raw = scaling.rawAlg.construct();
+		if (raw instanceof SignedInt64Member)
+			((SignedInt64Member) raw).setV(v);
+		else
+			((UnsignedInt64Member) raw).setV(v);
+		SignedInt64Member out = G.INT64.construct();
+		scaling.proc.call(raw, out);
+		return out;
+	}
+	
+	private static SignedInt64Member unsigned(Scaling scaling, long bits) {
+		return signed(scaling, bits);
+	}
+	
+	private static BigDecimal quad(Scaling scaling, long v) {
+		SignedInt64Member raw = G.INT64.construct();
+		raw.setV(v);
+		Float128Member out = G.QUAD.construct();
+		scaling.proc.call(raw, out);
+		return out.v();
+	}
+	
+	private static BigDecimal quadUnsigned(Scaling scaling, long bits) {
+		UnsignedInt64Member raw = G.UINT64.construct();
+		raw.setV(bits);
+		Float128Member out = G.QUAD.construct();
+		scaling.proc.call(raw, out);
+		return out.v();
+	}
+}